@@ -0,0 +1,78 @@
+package benchmarks;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import game_logic.TriviaResponse;
+import game_logic.TriviaResult;
+
+// Question loading and picking, as done at the start of every game and every round
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameBenchmark {
+    private static final String QUESTIONS_PATH = "src/database/questions.json";
+
+    private Object game;
+    private MethodHandle loadQuestions;
+    private MethodHandle shutdownGame;
+    private TriviaResponse triviaResponse;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Class<?> gameClass = Class.forName("Game");
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(gameClass, MethodHandles.lookup());
+
+        // Only loadQuestions is called, so the game doesn't need players, a server or spectators
+        MethodHandle newGame = lookup.findConstructor(gameClass, MethodType.methodType(void.class, int.class, List.class,
+                Class.forName("Server"), Class.forName("Spectators")));
+        game = newGame.invoke(0, List.of(), null, null);
+        loadQuestions = lookup.findVirtual(gameClass, "loadQuestions", MethodType.methodType(void.class, String.class));
+
+        MethodHandle playerThreadPool = lookup.findGetter(gameClass, "playerThreadPool", ExecutorService.class);
+        shutdownGame = MethodHandles.lookup().findVirtual(ExecutorService.class, "shutdown", MethodType.methodType(void.class));
+        shutdownGame = MethodHandles.filterArguments(shutdownGame, 0, playerThreadPool);
+
+        triviaResponse = new ObjectMapper().readValue(new File(QUESTIONS_PATH), new TypeReference<>() {
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        shutdownGame.invoke(game);
+    }
+
+    @Benchmark
+    public void loadQuestions() throws Throwable {
+        loadQuestions.invoke(game, QUESTIONS_PATH);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public TriviaResult getRandomQuestion() {
+        return triviaResponse.getRandomQuestion();
+    }
+}
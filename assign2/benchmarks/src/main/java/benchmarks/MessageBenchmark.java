@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encoding and decoding of protocol messages (Server.writeToClient / Server.readFromClient)
+// The socket is a stub, so only the reader/writer and charset work is measured, not the network
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    private static final String QUESTION = "Round Question: The Great Wall of China is visible from the Moon with the naked eye.";
+    private static final String ANSWER = "true";
+
+    private Object connection;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        connection = ServerClasses.NEW_SOCKET_CONNECTION.invoke((Socket) new ServerClasses.StubSocket(ANSWER));
+    }
+
+    @Benchmark
+    public void writeQuestion() throws Throwable {
+        ServerClasses.WRITE_TO_CLIENT.invoke(connection, QUESTION);
+    }
+
+    @Benchmark
+    public String readAnswer() throws Throwable {
+        return (String) ServerClasses.READ_FROM_CLIENT.invoke(connection);
+    }
+}
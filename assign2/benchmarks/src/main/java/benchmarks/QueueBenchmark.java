@@ -0,0 +1,110 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Queue and matchmaking operations with 'queueSize' players waiting
+// Ranked selection (what used to be Server.getPlayerListRanked) is MatchmakingPool.findOpponent for a
+// newcomer and MatchmakingPool.matchAll for a batch tick
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+    // Same windows as the server's Ranked mode
+    private static final int BASE_WINDOW = 50;
+    private static final int WINDOW_RELAX = 50;
+    private static final long RELAX_INTERVAL_MILLIS = 30_000;
+    private static final int MAX_WINDOW = 1000;
+    private static final int MAX_RANK = 3000;
+
+    @Param({"100", "1000", "10000"})
+    public int queueSize;
+
+    private Object[] clients;
+    private Object clientQueue;
+    private Object pool;
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        clients = new Object[queueSize];
+        clientQueue = ServerClasses.NEW_CLIENT_QUEUE.invoke();
+        for (int i = 0; i < queueSize; i++) {
+            clients[i] = ServerClasses.newSession("player" + i, random.nextInt(MAX_RANK));
+            ServerClasses.QUEUE_ADD.invoke(clientQueue, clients[i]);
+        }
+        pool = newPool();
+    }
+
+    private Object newPool() throws Throwable {
+        Object newPool = ServerClasses.NEW_MATCHMAKING_POOL.invoke(BASE_WINDOW, WINDOW_RELAX, RELAX_INTERVAL_MILLIS, MAX_WINDOW);
+        for (Object client : clients) {
+            ServerClasses.POOL_ADD.invoke(newPool, client);
+        }
+        return newPool;
+    }
+
+    private Object randomClient() {
+        return clients[random.nextInt(queueSize)];
+    }
+
+    // A player leaves and joins again at the end of the queue
+    @Benchmark
+    public void queueRemoveAndAdd() throws Throwable {
+        Object client = randomClient();
+        ServerClasses.QUEUE_REMOVE.invoke(clientQueue, client);
+        ServerClasses.QUEUE_ADD.invoke(clientQueue, client);
+    }
+
+    // A player leaves and reconnects to a saved position
+    @Benchmark
+    public void queueRemoveAndReconnect() throws Throwable {
+        Object client = randomClient();
+        ServerClasses.QUEUE_REMOVE.invoke(clientQueue, client);
+        ServerClasses.QUEUE_ADD_AT.invoke(clientQueue, random.nextInt(queueSize), client);
+    }
+
+    @Benchmark
+    public int queuePosition() throws Throwable {
+        return (int) ServerClasses.QUEUE_POSITION.invoke(clientQueue, randomClient());
+    }
+
+    @Benchmark
+    public Object poolFindOpponent() throws Throwable {
+        return ServerClasses.POOL_FIND_OPPONENT.invoke(pool, randomClient(), System.currentTimeMillis());
+    }
+
+    // Batch tick over the whole pool, the pool is rebuilt before each call
+    @State(Scope.Thread)
+    public static class FullPool {
+        Object pool;
+
+        @Setup(Level.Invocation)
+        public void fill(QueueBenchmark benchmark) throws Throwable {
+            pool = benchmark.newPool();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<?> poolMatchAll(FullPool fullPool) throws Throwable {
+        return (List<?>) ServerClasses.POOL_MATCH_ALL.invoke(fullPool.pool, System.currentTimeMillis());
+    }
+}
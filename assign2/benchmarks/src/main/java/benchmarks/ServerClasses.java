@@ -0,0 +1,154 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+// The server classes are in the default package, which can't be imported from a named package
+// (and JMH doesn't accept benchmarks in the default package), so the benchmarks call them through these handles
+final class ServerClasses {
+    private ServerClasses() {}
+
+    static final Class<?> SESSION = load("PlayerSession");
+    static final Class<?> CONNECTION = load("Connection");
+    static final Class<?> USER_DATABASE = load("UserDatabase");
+    static final Class<?> CLIENT_QUEUE = load("ClientQueue");
+    static final Class<?> MATCHMAKING_POOL = load("MatchmakingPool");
+    static final Class<?> SESSION_STORE = load("SessionStore");
+    static final Class<?> SESSION_STORE_SERVER = load("SessionStoreServer");
+
+    // - PlayerSession -
+    static final MethodHandle NEW_SESSION = constructor(SESSION, CONNECTION);
+    static final MethodHandle SESSION_SET_USERNAME = method(SESSION, "setUsername", void.class, String.class);
+    static final MethodHandle SESSION_SET_RANK = method(SESSION, "setRank", void.class, int.class);
+    static final MethodHandle SESSION_SET_QUEUE_JOIN_TIME = method(SESSION, "setQueueJoinTime", void.class, long.class);
+
+    // - UserDatabase -
+    static final MethodHandle NEW_USER_DATABASE = constructor(USER_DATABASE, String.class);
+    static final MethodHandle AUTHENTICATE = method(USER_DATABASE, "authenticate", boolean.class, String.class, String.class);
+    static final MethodHandle CREATE_USER = method(USER_DATABASE, "createUser", void.class, String.class, String.class);
+    static final MethodHandle SAVE_USERS = method(USER_DATABASE, "saveUsers", void.class);
+
+    // - SessionStore -
+    static final MethodHandle NEW_IN_MEMORY_STORE = constructor(load("InMemorySessionStore"));
+    static final MethodHandle NEW_REMOTE_STORE = constructor(load("RemoteSessionStore"), String.class, int.class, String.class);
+    static final MethodHandle HASH_TOKEN = staticMethod(SESSION_STORE, "hashToken", String.class, String.class);
+    static final MethodHandle STORE_PUT_TOKEN = method(SESSION_STORE, "putToken", void.class, String.class, String.class);
+    static final MethodHandle STORE_GET_USERNAME = method(SESSION_STORE, "getUsername", String.class, String.class);
+    static final MethodHandle STORE_CLOSE = method(SESSION_STORE, "close", void.class);
+    static final MethodHandle START_STORE_SERVER = staticMethod(SESSION_STORE_SERVER, "start", SESSION_STORE_SERVER, InetAddress.class, int.class,
+            String.class);
+    static final MethodHandle STORE_SERVER_PORT = method(SESSION_STORE_SERVER, "getPort", int.class);
+    static final MethodHandle STORE_SERVER_CLOSE = method(SESSION_STORE_SERVER, "close", void.class);
+
+    // - ClientQueue -
+    static final MethodHandle NEW_CLIENT_QUEUE = constructor(CLIENT_QUEUE);
+    static final MethodHandle QUEUE_ADD = method(CLIENT_QUEUE, "add", void.class, SESSION);
+    static final MethodHandle QUEUE_ADD_AT = method(CLIENT_QUEUE, "add", void.class, int.class, SESSION);
+    static final MethodHandle QUEUE_REMOVE = method(CLIENT_QUEUE, "remove", boolean.class, SESSION);
+    static final MethodHandle QUEUE_POSITION = method(CLIENT_QUEUE, "position", int.class, SESSION);
+
+    // - MatchmakingPool -
+    static final MethodHandle NEW_MATCHMAKING_POOL = constructor(MATCHMAKING_POOL, int.class, int.class, long.class, int.class);
+    static final MethodHandle POOL_ADD = method(MATCHMAKING_POOL, "add", void.class, SESSION);
+    static final MethodHandle POOL_REMOVE = method(MATCHMAKING_POOL, "remove", boolean.class, SESSION);
+    static final MethodHandle POOL_FIND_OPPONENT = method(MATCHMAKING_POOL, "findOpponent", SESSION, SESSION, long.class);
+    static final MethodHandle POOL_MATCH_ALL = method(MATCHMAKING_POOL, "matchAll", List.class, long.class);
+
+    // - Server messages -
+    static final MethodHandle NEW_SOCKET_CONNECTION = constructor(load("SocketConnection"), Socket.class);
+    static final MethodHandle WRITE_TO_CLIENT = staticMethod(load("Server"), "writeToClient", void.class, CONNECTION, String.class);
+    static final MethodHandle READ_FROM_CLIENT = staticMethod(load("Server"), "readFromClient", String.class, CONNECTION);
+
+    // Session with 'username' and 'rank' and no connection
+    static Object newSession(String username, int rank) throws Throwable {
+        Object session = NEW_SESSION.invoke((Object) null);
+        SESSION_SET_USERNAME.invoke(session, username);
+        SESSION_SET_RANK.invoke(session, rank);
+        SESSION_SET_QUEUE_JOIN_TIME.invoke(session, System.currentTimeMillis());
+        return session;
+    }
+
+    // Copy of the user database file, so benchmarks that save it don't change the real one
+    static Path copyUserDatabase() throws IOException {
+        Path copy = Files.createTempFile("users", ".json");
+        Files.copy(Path.of("src/database/users.json"), copy, StandardCopyOption.REPLACE_EXISTING);
+        copy.toFile().deleteOnExit();
+        return copy;
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters) {
+        try {
+            return MethodHandles.lookup().findConstructor(type, MethodType.methodType(void.class, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Also finds private methods
+    private static MethodHandle method(Class<?> type, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return MethodHandles.privateLookupIn(type, MethodHandles.lookup())
+                    .findVirtual(type, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> type, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return MethodHandles.lookup().findStatic(type, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Socket that reads 'input' over and over and discards what is written
+    static final class StubSocket extends Socket {
+        private final byte[] input;
+
+        StubSocket(String message) {
+            this.input = (message + '\n').getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return input[0];
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    int count = Math.min(length, input.length);
+                    System.arraycopy(input, 0, buffer, offset, count);
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// Heap retained per connected player on the server side
+// Opens 'connections' loopback sockets and measures, after a full GC, the memory kept by the state
+// the server builds for each accepted socket: SocketConnection + PlayerSession. The console Client
+// the server used before (Client(Socket)) is measured too, for comparison
+// Exits with 1 if the session is over BUDGET_BYTES, so it can be used as a check
+//
+// Usage: java -cp "benchmarks/target/benchmarks.jar:lib/*" benchmarks.SessionFootprint [connections]
+public final class SessionFootprint {
+    // Budget for SocketConnection + PlayerSession of one idle player (socket itself not included)
+    static final long BUDGET_BYTES = 1024;
+
+    private static final MethodHandle NEW_CONSOLE_CLIENT;
+
+    static {
+        try {
+            Class<?> client = Class.forName("Client");
+            NEW_CONSOLE_CLIENT = MethodHandles.lookup()
+                    .findConstructor(client, MethodType.methodType(void.class, Socket.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private SessionFootprint() {}
+
+    public static void main(String[] args) throws Throwable {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        try (ServerSocket serverSocket = new ServerSocket(0, connections, InetAddress.getLoopbackAddress())) {
+            Socket[] peers = new Socket[connections];
+            Socket[] accepted = new Socket[connections];
+            for (int i = 0; i < connections; i++) {
+                peers[i] = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+                accepted[i] = serverSocket.accept();
+                // The streams are created by the socket once, and kept by it
+                accepted[i].getInputStream();
+                accepted[i].getOutputStream();
+            }
+
+            Object[] sessions = new Object[connections];
+            long session = measure(connections, () -> {
+                for (int i = 0; i < connections; i++) {
+                    Object connection = ServerClasses.NEW_SOCKET_CONNECTION.invoke(accepted[i]);
+                    sessions[i] = ServerClasses.NEW_SESSION.invoke(connection);
+                }
+            });
+            Object[] clients = new Object[connections];
+            long consoleClient = measure(connections, () -> {
+                for (int i = 0; i < connections; i++) {
+                    clients[i] = NEW_CONSOLE_CLIENT.invoke(accepted[i]);
+                }
+            });
+
+            System.out.println("Connections:                        " + connections);
+            System.out.println("SocketConnection + PlayerSession:   " + session + " bytes/connection");
+            System.out.println("Client(Socket) (before):            " + consoleClient + " bytes/connection");
+            System.out.println("Budget:                             " + BUDGET_BYTES + " bytes/connection");
+
+            // Everything must stay reachable until here
+            Reference.reachabilityFence(sessions);
+            Reference.reachabilityFence(clients);
+            for (int i = 0; i < connections; i++) {
+                peers[i].close();
+                accepted[i].close();
+            }
+
+            if (session > BUDGET_BYTES) {
+                System.out.println("Over budget");
+                System.exit(1);
+            }
+        }
+    }
+
+    private interface Allocation {
+        void run() throws Throwable;
+    }
+
+    // Heap kept after 'allocation', divided by 'count'
+    private static long measure(int count, Allocation allocation) throws Throwable {
+        long before = usedHeap();
+        allocation.run();
+        long after = usedHeap();
+        return Math.max(0, (after - before) / count);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // A few rounds, until nothing else is collected
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) break;
+            used = now;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import java.net.InetAddress;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reconnection path: hashing a session token and finding its owner in the SessionStore
+// 'memory' is the store of a single server, 'remote' a SessionStoreServer on localhost with 'tokens' tokens
+// The concurrent lookups show the batching of the remote store, several lookups share one write
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionStoreBenchmark {
+    private static final String STORE_SECRET = "benchmark";
+
+    @Param({"memory", "remote"})
+    public String backend;
+
+    @Param({"1000"})
+    public int tokens;
+
+    private Object storeServer;
+    private Object store;
+    private String token;
+    private String tokenHash;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        if (backend.equals("remote")) {
+            storeServer = ServerClasses.START_STORE_SERVER.invoke(InetAddress.getLoopbackAddress(), 0, STORE_SECRET);
+            store = ServerClasses.NEW_REMOTE_STORE.invoke("localhost", (int) ServerClasses.STORE_SERVER_PORT.invoke(storeServer), STORE_SECRET);
+        } else {
+            store = ServerClasses.NEW_IN_MEMORY_STORE.invoke();
+        }
+
+        for (int i = 1; i <= tokens; i++) {
+            token = UUID.randomUUID().toString();
+            tokenHash = (String) ServerClasses.HASH_TOKEN.invoke(token);
+            ServerClasses.STORE_PUT_TOKEN.invoke(store, tokenHash, "user" + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        ServerClasses.STORE_CLOSE.invoke(store);
+        if (storeServer != null) ServerClasses.STORE_SERVER_CLOSE.invoke(storeServer);
+    }
+
+    @Benchmark
+    public String hashToken() throws Throwable {
+        return (String) ServerClasses.HASH_TOKEN.invoke(token);
+    }
+
+    @Benchmark
+    public String getUsername() throws Throwable {
+        return (String) ServerClasses.STORE_GET_USERNAME.invoke(store, tokenHash);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String getUsernameConcurrent() throws Throwable {
+        return (String) ServerClasses.STORE_GET_USERNAME.invoke(store, tokenHash);
+    }
+}
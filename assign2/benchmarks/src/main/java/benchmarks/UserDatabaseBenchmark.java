@@ -0,0 +1,59 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Login path: password checks (bcrypt) and saving the database file
+// Runs on a copy of src/database/users.json with 'users' users
+// Session tokens are in the SessionStore (see SessionStoreBenchmark)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserDatabaseBenchmark {
+    @Param({"3", "30"})
+    public int users;
+
+    private Object userDatabase;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Path copy = ServerClasses.copyUserDatabase();
+        userDatabase = ServerClasses.NEW_USER_DATABASE.invoke(copy.toString());
+
+        for (int i = 4; i <= users; i++) {
+            ServerClasses.CREATE_USER.invoke(userDatabase, "user" + i, "password" + i);
+        }
+    }
+
+    @Benchmark
+    public boolean authenticate() throws Throwable {
+        return (boolean) ServerClasses.AUTHENTICATE.invoke(userDatabase, "user1", "password1");
+    }
+
+    @Benchmark
+    public boolean authenticateWrongPassword() throws Throwable {
+        return (boolean) ServerClasses.AUTHENTICATE.invoke(userDatabase, "user1", "wrongpassword");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void saveUsers() throws Throwable {
+        ServerClasses.SAVE_USERS.invoke(userDatabase);
+    }
+}
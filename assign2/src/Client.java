@@ -2,67 +2,47 @@ import java.io.*;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
+// Console client: asks the user what to do and talks to the server
+// The server keeps its own state of each player in a PlayerSession
 public class Client {
 
     private String username;
-    private int rank;
-    private final Socket socket;
-    private long lastResponseTime;
     private final BufferedReader consoleReader;
-    private final BufferedReader serverReader;
-    private final PrintWriter serverWriter;
-    private int currentScore;
+    // Connection to the server, replaced when he is sent to another server (REDIRECT)
+    private Socket socket;
+    private BufferedReader serverReader;
+    private PrintWriter serverWriter;
+    // Ticket of the match he was sent to, used once the new server welcomes him
+    private String matchTicket;
 
     public Client(Socket socket) throws IOException {
-        this.socket = socket;
         this.consoleReader = new BufferedReader(new InputStreamReader(System.in));
-        this.serverReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.serverWriter = new PrintWriter(socket.getOutputStream(), true);
+        connect(socket);
     }
 
-    public String getUsername() {
-        return this.username;
+    private void connect(Socket socket) throws IOException {
+        this.socket = socket;
+        this.serverReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.serverWriter = new PrintWriter(socket.getOutputStream(), true);
     }
 
-    public Socket getSocket() {
-        return this.socket;
+    public void close() throws IOException {
+        socket.close();
     }
 
-    public int getRank() {
-        return this.rank;
+    public String getUsername() {
+        return this.username;
     }
 
     public void setUsername(String username) {
         this.username = username;
     }
 
-    public void setRank(int rank) {
-        this.rank = rank;
-    }
-
-    // Updates lastResponseTime to current time
-    public void setLastResponseTime() {
-        this.lastResponseTime = System.currentTimeMillis();
-    }
-
-    public long getLastResponseTime() {
-        return lastResponseTime;
-    }
-
     // Send a message to the server
     public void sendMessageToServer(String message) {
         serverWriter.println(message);
     }
 
-    public int getScore() {
-        return currentScore;
-    }
-
-    // Increments client's score by 1
-    public void incrementScore() {
-        this.currentScore++;
-    }
-
     // Handle client authentication
     private void handleAuthentication(String serverMessage) throws IOException {
         switch (serverMessage) {
@@ -97,7 +77,7 @@ public class Client {
     private void handleServerReconnection(String serverMessage) {
         if (serverMessage.startsWith(Communication.RECONNECT_SUCCESS)) {
             String queuePos = getMessageContent(serverMessage);
-            System.out.println("Reconnected with position " + queuePos);
+            System.out.println(queuePos.isEmpty() ? "Reconnected." : "Reconnected with position " + queuePos);
         } else if (serverMessage.equals(Communication.RECONNECT_ALREADY_LOGGED_IN)) {
             System.out.println("You are already logged in.");
         } else if (serverMessage.equals(Communication.RECONNECT_FAIL)) {
@@ -114,8 +94,13 @@ public class Client {
             handleAuthentication(serverMessage);
         } else if (serverMessage.startsWith(Communication.TOKEN)) {
             storeToken(getMessageContent(serverMessage));
+        } else if (serverMessage.equals(Communication.WELCOME) && matchTicket != null) {
+            sendMessageToServer(Communication.CLIENT_JOIN_MATCH + " " + matchTicket);
+            matchTicket = null;
         } else if (serverMessage.equals(Communication.WELCOME)) {
             handleServerWelcome();
+        } else if (serverMessage.startsWith(Communication.QUEUE_SELECT)) {
+            handleQueueSelect(serverMessage);
         } else if (serverMessage.equals(Communication.REQUEST_TOKEN)) {
             sendMessageToServer(retrieveToken());
         } else if (serverMessage.startsWith("RECONNECT")) {
@@ -126,6 +111,16 @@ public class Client {
             handleQuestionAnswer();
         } else if (serverMessage.equals(Communication.REQUEUE_OR_QUIT)) {
             handleRequeueOrExit();
+        } else if (serverMessage.equals(Communication.LEADERBOARD_USERNAME)) {
+            sendMessageToServer(enterLeaderboardUsername());
+        } else if (serverMessage.equals(Communication.LEADERBOARD_END)) {
+            System.out.println();
+        } else if (serverMessage.startsWith(Communication.REDIRECT)) {
+            handleRedirect(serverMessage);
+        } else if (serverMessage.equals(Communication.JOIN_MATCH_FAIL)) {
+            System.out.println("Your match is no longer available.");
+        } else if (serverMessage.startsWith("SPECTATE")) {
+            handleSpectate(serverMessage);
         } else {
             System.out.println(serverMessage);
         }
@@ -252,11 +247,20 @@ public class Client {
         return password;
     }
 
+    // Handles username input for the leaderboard, empty to only see the top players
+    private String enterLeaderboardUsername() throws IOException {
+        System.out.print("Show position of username (Enter to skip): ");
+        String username = consoleReader.readLine();
+        return username != null ? username.trim() : "";
+    }
+
     // Handles server welcome message (first message received upon connection)
     private void handleServerWelcome() throws IOException{
         System.out.println("1. Log In");
         System.out.println("2. Reconnect");
         System.out.println("3. Create Account");
+        System.out.println("4. Leaderboard");
+        System.out.println("5. Spectate");
         System.out.print("Select: ");
         String answer = consoleReader.readLine();
 
@@ -272,12 +276,98 @@ public class Client {
             case "3":
                 sendMessageToServer(Communication.CLIENT_REGISTER);
                 break;
+
+            case "4":
+                sendMessageToServer(Communication.CLIENT_LEADERBOARD);
+                break;
+
+            case "5":
+                sendMessageToServer(Communication.CLIENT_SPECTATE);
+                break;
         
             default:
                 break;
         }
     }
 
+    // Select the queue to join, from the ones the server offers
+    // Example : "QUEUE_SELECT simple ranked"
+    private void handleQueueSelect(String serverMessage) throws IOException {
+        String[] queues = serverMessage.split(" ");
+        for (int i = 1; i < queues.length; i++) {
+            System.out.println(i + ". " + queues[i]);
+        }
+        System.out.print("Select queue: ");
+        String answer = consoleReader.readLine();
+
+        try {
+            int choice = Integer.parseInt(answer.trim());
+            if (choice >= 1 && choice < queues.length) {
+                answer = queues[choice];
+            }
+        } catch (NumberFormatException e) {
+            // He typed the name of the queue
+        }
+        sendMessageToServer(answer);
+    }
+
+    // Chooses a game to watch and shows its events
+    // Example : "SPECTATE_ANSWER alice correct 2"
+    private void handleSpectate(String serverMessage) throws IOException {
+        String[] parts = serverMessage.split(" ");
+        switch (parts[0]) {
+            case Communication.SPECTATE_GAMES:
+                if (parts.length == 1) {
+                    System.out.println("No games are being played.");
+                    sendMessageToServer("");
+                    break;
+                }
+                System.out.println("Games being played (most watched first):");
+                for (int i = 1; i < parts.length; i++) {
+                    System.out.println("  Game " + parts[i]);
+                }
+                System.out.print("Game to watch (Enter to go back): ");
+                String answer = consoleReader.readLine();
+                sendMessageToServer(answer != null ? answer.trim() : "");
+                break;
+            case Communication.SPECTATE_FAIL:
+                System.out.println("That game isn't being played.");
+                break;
+            case Communication.SPECTATE_START:
+                StringBuilder players = new StringBuilder();
+                for (int i = 3; i + 1 < parts.length; i += 2) {
+                    if (!players.isEmpty()) players.append(" vs ");
+                    players.append(parts[i]).append(" (").append(parts[i + 1]).append(")");
+                }
+                System.out.println("Watching game " + parts[1] + ", round " + parts[2] + ": " + players);
+                break;
+            case Communication.SPECTATE_QUESTION:
+                System.out.println("Round " + parts[1] + ": " + serverMessage.split(" ", 3)[2]);
+                break;
+            case Communication.SPECTATE_ANSWER:
+                String result = parts[2].equals("none") ? "didn't answer" : "answered " + parts[2] + "ly";
+                System.out.println(parts[1] + " " + result + " (score " + parts[3] + ")");
+                break;
+            case Communication.SPECTATE_END:
+                System.out.println(parts[1].equals("-") ? "Game over! No winner." : "Game over! The winner is " + parts[1]);
+                System.out.println();
+                break;
+            default:
+                System.out.println(serverMessage);
+                break;
+        }
+    }
+
+    // Moves to the server that hosts his match, and joins it with the ticket once welcomed
+    // Example : "REDIRECT localhost 12346 <ticket>"
+    private void handleRedirect(String serverMessage) throws IOException {
+        String[] parts = serverMessage.split(" ");
+        System.out.println("Match found on " + parts[1] + ":" + parts[2] + ", moving there...");
+        socket.close();
+        connect(new Socket(parts[1], Integer.parseInt(parts[2])));
+        matchTicket = parts[3];
+    }
+
     // Select if client wants to requeue or quit after a game finishes
     private void handleRequeueOrExit() {
         try {
@@ -311,9 +401,13 @@ public class Client {
         String hostname = args[0];
         int port = Integer.parseInt(args[1]);
 
-        try (Socket socket = new Socket(hostname, port)) {
-            Client client = new Client(socket);
-            client.readServerMessages();
+        try {
+            Client client = new Client(new Socket(hostname, port));
+            try {
+                client.readServerMessages();
+            } finally {
+                client.close();
+            }
         } catch (UnknownHostException ex) {
             System.out.println("Server not found: " + ex.getMessage());
         } catch (IOException ex) {
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Queue of Clients waiting for a game, ordered by queue position
+// Backed by an implicit treap (a randomly balanced tree ordered by position, where each node
+// knows the size of its subtree), so inserting at a position, removing a Client and
+// asking for a Client's position are all O(log n)
+// Not thread safe, the Server only uses it while holding clientQueue_lock
+public class ClientQueue {
+    private static class Node {
+        final PlayerSession client;
+        final int priority;
+        Node left, right, parent;
+        int size = 1;
+
+        Node(PlayerSession client, int priority) {
+            this.client = client;
+            this.priority = priority;
+        }
+    }
+
+    private Node root;
+    // {client : tree node}, to find a Client's node without searching the tree
+    private final Map<PlayerSession, Node> nodes = new IdentityHashMap<>();
+    private final Random random = new Random();
+
+    public int size() {
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public boolean contains(PlayerSession client) {
+        return nodes.containsKey(client);
+    }
+
+    // Adds a Client to the end of the queue
+    public void add(PlayerSession client) {
+        add(size(), client);
+    }
+
+    // Adds a Client at 'index' (0 based), positions past the end add him to the end
+    public void add(int index, PlayerSession client) {
+        if (nodes.containsKey(client)) {
+            throw new IllegalArgumentException("Client is already in the queue");
+        }
+
+        Node node = new Node(client, random.nextInt());
+        nodes.put(client, node);
+
+        index = Math.max(0, Math.min(index, size()));
+        Node[] parts = split(root, index);
+        root = merge(merge(parts[0], node), parts[1]);
+        root.parent = null;
+    }
+
+    // Removes a Client from the queue
+    // Returns false if the client was not in the queue
+    public boolean remove(PlayerSession client) {
+        Node node = nodes.remove(client);
+        if (node == null) return false;
+
+        Node[] parts = split(root, indexOf(node));
+        Node[] rest = split(parts[1], 1);
+        root = merge(parts[0], rest[1]);
+        if (root != null) root.parent = null;
+        return true;
+    }
+
+    public void clear() {
+        root = null;
+        nodes.clear();
+    }
+
+    // Gets a Client's queue position (1 based)
+    // Returns -1 if client is not in the queue
+    public int position(PlayerSession client) {
+        Node node = nodes.get(client);
+        return node != null ? indexOf(node) + 1 : -1;
+    }
+
+    // Gets the Client at 'index' (0 based)
+    public PlayerSession get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for queue of size " + size());
+        }
+
+        Node node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.client;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    // Copy of the queue in position order
+    public List<PlayerSession> toList() {
+        List<PlayerSession> clients = new ArrayList<>(size());
+        collect(root, clients);
+        return clients;
+    }
+
+    private static void collect(Node node, List<PlayerSession> clients) {
+        while (node != null) {
+            collect(node.left, clients);
+            clients.add(node.client);
+            node = node.right;
+        }
+    }
+
+    // Index of a node, found by walking up to the root
+    private static int indexOf(Node node) {
+        int index = size(node.left);
+        while (node.parent != null) {
+            if (node == node.parent.right) {
+                index += size(node.parent.left) + 1;
+            }
+            node = node.parent;
+        }
+        return index;
+    }
+
+    private static int size(Node node) {
+        return node != null ? node.size : 0;
+    }
+
+    private static void update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        if (node.left != null) node.left.parent = node;
+        if (node.right != null) node.right.parent = node;
+    }
+
+    // Splits a tree into its first 'count' nodes and the rest
+    private static Node[] split(Node node, int count) {
+        if (node == null) return new Node[] {null, null};
+
+        Node[] parts;
+        if (size(node.left) >= count) {
+            parts = split(node.left, count);
+            node.left = parts[1];
+            update(node);
+            if (parts[0] != null) parts[0].parent = null;
+            return new Node[] {parts[0], node};
+        } else {
+            parts = split(node.right, count - size(node.left) - 1);
+            node.right = parts[0];
+            update(node);
+            if (parts[1] != null) parts[1].parent = null;
+            return new Node[] {node, parts[1]};
+        }
+    }
+
+    // Joins two trees, every node of 'first' goes before every node of 'second'
+    private static Node merge(Node first, Node second) {
+        if (first == null) return second;
+        if (second == null) return first;
+
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            update(first);
+            return first;
+        } else {
+            second.left = merge(first, second.left);
+            update(second);
+            return second;
+        }
+    }
+}
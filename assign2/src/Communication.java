@@ -22,6 +22,12 @@ public class Communication {
     public static final Set<String> AUTH_MESSAGES = Set.of(AUTH_USERNAME, AUTH_PASSWORD, AUTH_SUCCESS, AUTH_FAIL, AUTH_ALREADY_LOGGED_IN);
 
 
+    // Server asks Client which queue to join (only when it has more than one)
+    // Message content -> names of the queues, the Client answers with one of them
+    // Example -> "QUEUE_SELECT simple ranked"
+    public static final String QUEUE_SELECT = "QUEUE_SELECT";
+
+
     // Ping
     public static final String PING = "PING";
     // Pong (Answer to Ping)
@@ -71,6 +77,92 @@ public class Communication {
     public static final String ANSWER = "ANSWER";
 
 
+    // Client asks Server for the leaderboard
+    public static final String CLIENT_LEADERBOARD = "CLIENT_LEADERBOARD";
+    // Server asks Client for the username to show the position of (empty for only the top players)
+    public static final String LEADERBOARD_USERNAME = "LEADERBOARD_USERNAME";
+    // Server informs Client that the leaderboard was fully sent
+    public static final String LEADERBOARD_END = "LEADERBOARD_END";
+
+
+    // Client asks Server to watch a running game (spectator)
+    public static final String CLIENT_SPECTATE = "CLIENT_SPECTATE";
+    // Server lists the games that can be watched, most watched first, the Client answers with one (empty to go back)
+    // Example -> "SPECTATE_GAMES 12 7 15"
+    public static final String SPECTATE_GAMES = "SPECTATE_GAMES";
+    // Server informs that the game isn't running
+    public static final String SPECTATE_FAIL = "SPECTATE_FAIL";
+    // Server informs the Client he is watching the game, with its round and each player's score
+    // Example -> "SPECTATE_START 12 2 alice 1 bob 0" (game, round, then each player)
+    public static final String SPECTATE_START = "SPECTATE_START";
+    // Example -> "SPECTATE_QUESTION 3 Is the Earth flat?" (round, question)
+    public static final String SPECTATE_QUESTION = "SPECTATE_QUESTION";
+    // Example -> "SPECTATE_ANSWER alice correct 2" (player, correct / incorrect / none, score)
+    public static final String SPECTATE_ANSWER = "SPECTATE_ANSWER";
+    // Game ended, the Client goes back to the welcome menu
+    // Example -> "SPECTATE_END alice" (winner, "-" if none)
+    public static final String SPECTATE_END = "SPECTATE_END";
+
+
+    // Server sends Client to the game server that hosts his match (with a match coordinator)
+    // Message content -> <HOST> <PORT> <TICKET>
+    // Example -> "REDIRECT localhost 12346 3f1c...", the Client connects there and joins with the ticket
+    public static final String REDIRECT = "REDIRECT";
+    // Client joins the match he was sent to
+    // Message content -> <TICKET>
+    public static final String CLIENT_JOIN_MATCH = "CLIENT_JOIN_MATCH";
+    // Server informs that the ticket is not valid (or the match is gone)
+    public static final String JOIN_MATCH_FAIL = "JOIN_MATCH_FAIL";
+
+
+    // - Game server (node) <-> match coordinator -
+    // Node registers with the coordinator, with the secret shared by the coordinator and its nodes
+    // Example -> "NODE_REGISTER s3cret node1 localhost 12345 100" (secret, id, host and port for clients, game capacity)
+    public static final String NODE_REGISTER = "NODE_REGISTER";
+    // Node informs a player joined one of its queues
+    // Example -> "NODE_ENQUEUE ranked 1 alice 1200" (queue, game mode, username, rank)
+    public static final String NODE_ENQUEUE = "NODE_ENQUEUE";
+    // Node informs a player left one of its queues
+    // Example -> "NODE_DEQUEUE ranked alice"
+    public static final String NODE_DEQUEUE = "NODE_DEQUEUE";
+    // Node informs how many games it is running
+    // Example -> "NODE_LOAD 12"
+    public static final String NODE_LOAD = "NODE_LOAD";
+    // Coordinator asks a node to host a match
+    // Example -> "MATCH_HOST 7 ranked alice 1200 <ticket> node1 bob 1250 <ticket> node2" (match id, queue, then each
+    // player with the node he is connected to)
+    public static final String MATCH_HOST = "MATCH_HOST";
+    // Coordinator asks the node of a player to move him to the match
+    // Example -> "MATCH_PLAYER 7 ranked alice node2 localhost 12346 <ticket>" (match id, queue, username, host node)
+    public static final String MATCH_PLAYER = "MATCH_PLAYER";
+    // Host node sends the rank change of a player who came from another node, to be applied by that node
+    // Example -> "NODE_RANK_CHANGE node2 bob -10" (home node of the player, username, rank change)
+    public static final String NODE_RANK_CHANGE = "NODE_RANK_CHANGE";
+    // Coordinator hands a rank change to the node of the player
+    // Example -> "RANK_CHANGE bob -10"
+    public static final String RANK_CHANGE = "RANK_CHANGE";
+
+
+    // - Game server <-> session store (SessionStoreServer) -
+    // Requests are answered in the order they were received, the ones that only write have no answer
+    // A missing value is answered with STORE_NONE
+    // Example -> "STORE_AUTH s3cret", the first request of every connection (the store's secret)
+    public static final String STORE_AUTH = "STORE_AUTH";
+    // Example -> "STORE_TOKEN_PUT 9f86d0... alice" (token hash, username)
+    public static final String STORE_TOKEN_PUT = "STORE_TOKEN_PUT";
+    // Example -> "STORE_TOKEN_GET 9f86d0...", answered with the username
+    public static final String STORE_TOKEN_GET = "STORE_TOKEN_GET";
+    // Example -> "STORE_LOGIN alice", answered with "1" (logged in) or "0" (he already was)
+    public static final String STORE_LOGIN = "STORE_LOGIN";
+    // Example -> "STORE_LOGOUT alice"
+    public static final String STORE_LOGOUT = "STORE_LOGOUT";
+    // Example -> "STORE_POSITION_PUT alice ranked 0 3 1760000000000" (username, queue, shard, position, queue join time)
+    public static final String STORE_POSITION_PUT = "STORE_POSITION_PUT";
+    // Example -> "STORE_POSITION_GET alice", answered with "ranked 0 3 1760000000000"
+    public static final String STORE_POSITION_GET = "STORE_POSITION_GET";
+    public static final String STORE_NONE = "-";
+
+
     // Server asks Client to requeue or quit
     public static final String REQUEUE_OR_QUIT = "REQUEUE_OR_QUIT";
     // Client informs Server he wants to Requeue
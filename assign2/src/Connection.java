@@ -0,0 +1,35 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+// Line based connection between the server and a client
+// SocketConnection is the real one, InMemoryConnection connects both ends inside the same process
+// (simulations and in-process load tests), so Server and Game don't depend on sockets
+public interface Connection extends Closeable {
+    // Sends one message (a line)
+    void write(String message) throws IOException;
+
+    // Sends a message already encoded in UTF-8, ending with '\n'
+    // Lets a message sent to many connections be encoded once (see Spectators)
+    void writeEncoded(byte[] message) throws IOException;
+
+    // Receives one message, or null when the other end closed the connection
+    String read() throws IOException;
+
+    // Like read(), but waits at most 'timeoutMillis' for the message
+    // Throws SocketTimeoutException if it didn't come, without consuming any of it
+    String read(long timeoutMillis) throws IOException;
+
+    // The client is past the login: reads stop using the login's time limit
+    // Called before he is queued or given to a game, while his login thread is still the only reader
+    void endHandshake() throws IOException;
+
+    boolean isClosed();
+
+    // Closes the connection right away, the messages not sent yet are dropped
+    // Never blocks, so it is safe on an event loop and for evicting or dropping a client
+    void close() throws IOException;
+
+    // Sends the messages still queued (waiting a moment at most), then closes the connection
+    // For a last message the client must get, e.g. REDIRECT
+    void closeAfterFlush() throws IOException;
+}
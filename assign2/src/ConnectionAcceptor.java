@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+// Accepts the players' connections and hands them to the Server
+// Runs ServerConfig.getAcceptors() threads. Where the platform supports SO_REUSEPORT each of them has its own
+// listening socket on the port and the kernel spreads the connections between them, otherwise they share one.
+// Connection storms (e.g. everyone coming back after an outage) are shaped before they reach the Server:
+// - at most ServerConfig.getAcceptRate() connections are accepted per second (0 for no limit)
+// - at most ServerConfig.getMaxPreAuth() accepted connections can be logging in at once. While that many are,
+//   no more are accepted, so the others wait in the backlog of the socket instead of using heap and carrier threads
+// A connection that doesn't answer for HANDSHAKE_TIMEOUT while logging in is closed, so it can't hold a slot
+// Messages to the players are queued (see SocketConnection), a player is evicted once MAX_PENDING_BYTES
+// are waiting for him or a message waited MAX_OUTBOUND_LAG
+public class ConnectionAcceptor {
+    // Time (in milliseconds) the server waits for each message of a connection that is logging in
+    private static final int HANDSHAKE_TIMEOUT = 60000;
+    // A full game is a few KB of messages, a player this far behind isn't reading them
+    private static final int MAX_PENDING_BYTES = 64 * 1024;
+    // Time (in milliseconds), longer than the answer time of a round
+    private static final int MAX_OUTBOUND_LAG = 10000;
+
+    private final List<ServerSocket> serverSockets = new ArrayList<>();
+    private final int acceptors;
+    private final boolean reusePort;
+    // null without a rate limit
+    private final RateLimiter rateLimiter;
+    private final Semaphore preAuthSlots;
+
+    // Binds the listening socket(s), the connections are only accepted after start
+    public ConnectionAcceptor(ServerConfig config) throws IOException {
+        this.acceptors = config.getAcceptors();
+        this.rateLimiter = config.getAcceptRate() > 0
+                ? new RateLimiter(config.getAcceptRate(), Math.max(1, config.getAcceptRate()))
+                : null;
+        this.preAuthSlots = new Semaphore(config.getMaxPreAuth());
+
+        ServerSocket first = new ServerSocket();
+        // Only with several acceptors: SO_REUSEPORT would also let another server bind the same port by mistake
+        this.reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        bind(first, config.getPort(), config.getBacklog());
+        if (reusePort) {
+            // With port 0 the first socket got a free port, the others join it
+            for (int i = 1; i < acceptors; i++) {
+                bind(new ServerSocket(), first.getLocalPort(), config.getBacklog());
+            }
+        }
+    }
+
+    private void bind(ServerSocket serverSocket, int port, int backlog) throws IOException {
+        if (reusePort) {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverSocket.bind(new InetSocketAddress(port), backlog);
+        serverSockets.add(serverSocket);
+    }
+
+    public int getPort() {
+        return serverSockets.get(0).getLocalPort();
+    }
+
+    public boolean usesReusePort() {
+        return reusePort;
+    }
+
+    // Starts the acceptor threads
+    // The server also sends connections back to the welcome menu through it (see readmit)
+    public void start(Server server) {
+        server.setAcceptor(this);
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocket serverSocket = serverSockets.get(reusePort ? i : 0);
+            Thread.ofPlatform().name("acceptor-" + i).start(() -> acceptConnections(serverSocket, server));
+        }
+    }
+
+    public void close() throws IOException {
+        for (ServerSocket serverSocket : serverSockets) {
+            serverSocket.close();
+        }
+    }
+
+    private void acceptConnections(ServerSocket serverSocket, Server server) {
+        while (!serverSocket.isClosed()) {
+            long throttleStart = System.nanoTime();
+            try {
+                preAuthSlots.acquire();
+                if (rateLimiter != null) rateLimiter.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Metrics.ACCEPT_THROTTLE.recordSince(throttleStart);
+
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                preAuthSlots.release();
+                if (!serverSocket.isClosed()) {
+                    Log.warn("[CONNECTION] Failed to accept a connection: %s", e.getMessage());
+                }
+                continue;
+            }
+
+            Metrics.CONNECTIONS_ACCEPTED.increment();
+            Metrics.CONNECTIONS_PRE_AUTH.increment();
+            ServerEvents.ConnectionAccepted acceptedEvent = new ServerEvents.ConnectionAccepted();
+            acceptedEvent.remotePort = socket.getPort();
+            acceptedEvent.commit();
+            try {
+                SocketConnection connection = new SocketConnection(socket, MAX_PENDING_BYTES, MAX_OUTBOUND_LAG);
+                connection.startHandshake(HANDSHAKE_TIMEOUT);
+                server.acceptConnection(connection, this::handshakeDone);
+            } catch (IOException e) {
+                Log.warn("[CONNECTION] Failed to set up a connection: %s", e.getMessage());
+                handshakeDone();
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    // Sends a connection that was already accepted back to the login (e.g. a spectator whose game ended)
+    // Like a new one, it waits for a pre-auth slot and gets HANDSHAKE_TIMEOUT. The wait is on a thread of
+    // its own, so the caller (an event loop) never blocks
+    public void readmit(SocketConnection connection, Server server) {
+        Socket socket = connection.getSocket();
+        Thread.startVirtualThread(() -> {
+            try {
+                preAuthSlots.acquire();
+            } catch (InterruptedException e) {
+                closeQuietly(socket);
+                return;
+            }
+
+            Metrics.CONNECTIONS_PRE_AUTH.increment();
+            try {
+                connection.startHandshake(HANDSHAKE_TIMEOUT);
+                server.acceptConnection(connection, this::handshakeDone);
+            } catch (IOException e) {
+                Log.warn("[CONNECTION] Failed to set up a connection: %s", e.getMessage());
+                handshakeDone();
+                closeQuietly(socket);
+            }
+        });
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // The connection is past the login (queued, playing or gone), it gives back its slot
+    // Its timeout was already reset by the Server (Connection.endHandshake) before it was queued
+    private void handshakeDone() {
+        Metrics.CONNECTIONS_PRE_AUTH.decrement();
+        preAuthSlots.release();
+    }
+}
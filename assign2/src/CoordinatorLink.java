@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+// Connection of a game server (node) to the match coordinator (see MatchCoordinator)
+// It registers the node (with the coordinator's secret), forwards the players that join or leave its
+// queues, reports its load and sends the rank changes of players from other nodes to their node.
+// The coordinator's MATCH_HOST, MATCH_PLAYER and RANK_CHANGE messages are handed to the Server.
+// If the coordinator can't be reached the queues match their players locally, and the link keeps
+// trying to reconnect; once it is back the queued players are sent to it again
+public class CoordinatorLink {
+    // Time (in milliseconds) between connection attempts
+    private static final int RECONNECT_INTERVAL = 2000;
+    // The messages to the coordinator are queued (see SocketConnection), so the GameQueue loops that send
+    // them never wait for the socket. Room for the whole queue being sent again after a reconnection
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+    // Time (in milliseconds) a message may wait. A coordinator this far behind is dropped and the link
+    // reconnects, matching locally meanwhile
+    private static final int MAX_OUTBOUND_LAG = 10000;
+
+    private final String host;
+    private final int port;
+    private final String registration;
+    private final Server server;
+    private volatile Connection connection;
+    // Only used by the link's thread
+    private boolean unreachable;
+
+    public CoordinatorLink(String host, int port, String secret, String nodeId, String advertisedHost, int advertisedPort, int capacity,
+                           Server server) {
+        this.host = host;
+        this.port = port;
+        this.registration = String.join(" ", Communication.NODE_REGISTER, secret, nodeId, advertisedHost,
+                String.valueOf(advertisedPort), String.valueOf(capacity));
+        this.server = server;
+    }
+
+    public void start() {
+        Thread.ofPlatform().name("coordinator-link").daemon().start(this::run);
+    }
+
+    public boolean isConnected() {
+        Connection current = connection;
+        return current != null && !current.isClosed();
+    }
+
+    // Tells the coordinator a player joined the queue 'queueName'
+    public void enqueue(GameQueue queue, PlayerSession client) {
+        send(String.join(" ", Communication.NODE_ENQUEUE, queue.getName(), String.valueOf(queue.getGameMode()),
+                client.getUsername(), String.valueOf(client.getRank())));
+    }
+
+    // Tells the coordinator a player left the queue 'queueName'
+    public void dequeue(GameQueue queue, PlayerSession client) {
+        send(String.join(" ", Communication.NODE_DEQUEUE, queue.getName(), client.getUsername()));
+    }
+
+    public void reportLoad(long games) {
+        send(Communication.NODE_LOAD + " " + games);
+    }
+
+    // Sends the rank change of a player who came from 'homeNode' to that node
+    // Returns false if the coordinator can't be reached
+    public boolean sendRankChange(String homeNode, String username, int rankDelta) {
+        return send(String.join(" ", Communication.NODE_RANK_CHANGE, homeNode, username, String.valueOf(rankDelta)));
+    }
+
+    // Returns false if the message couldn't be sent
+    private boolean send(String message) {
+        Connection current = connection;
+        if (current == null) return false;
+        try {
+            current.write(message);
+            return true;
+        } catch (IOException e) {
+            Log.warn("[COORDINATOR] Failed to send to the coordinator: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try (Socket socket = new Socket(host, port)) {
+                Connection current = new SocketConnection(socket, MAX_PENDING_BYTES, MAX_OUTBOUND_LAG);
+                current.write(registration);
+                connection = current;
+                unreachable = false;
+                Log.info("[COORDINATOR] Connected to the coordinator at %s:%d", host, port);
+                server.coordinatorConnected();
+
+                String message;
+                while ((message = current.read()) != null) {
+                    handleMessage(message.split(" "));
+                }
+            } catch (IOException | RuntimeException e) {
+                // Only the first failed attempt is worth a warning, it keeps trying quietly
+                if (connection != null || !unreachable) {
+                    Log.warn("[COORDINATOR] Coordinator unreachable: %s", e.getMessage());
+                }
+                unreachable = true;
+            }
+
+            if (connection != null) {
+                connection = null;
+                Log.warn("[COORDINATOR] Lost the coordinator, matching locally");
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(RECONNECT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void handleMessage(String[] fields) {
+        switch (fields[0]) {
+            case Communication.MATCH_HOST -> server.hostMatch(Integer.parseInt(fields[1]), fields[2], fields);
+            case Communication.MATCH_PLAYER -> server.movePlayer(Integer.parseInt(fields[1]), fields[2], fields[3], fields[4],
+                    fields[5], Integer.parseInt(fields[6]), fields[7]);
+            case Communication.RANK_CHANGE -> server.applyRankChange(fields[1], Integer.parseInt(fields[2]));
+            default -> Log.warn("[COORDINATOR] Unknown message from the coordinator: %s", fields[0]);
+        }
+    }
+}
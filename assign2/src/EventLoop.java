@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Single thread that runs the tasks posted to it one at a time, in order, plus periodic tasks
+// State only touched by tasks of the same loop needs no locks: other threads post a task
+// to its mailbox instead of changing the state themselves
+public class EventLoop {
+    private static class Periodic {
+        final Runnable task;
+        final long periodNanos;
+        long nextRun;
+
+        Periodic(Runnable task, long periodNanos) {
+            this.task = task;
+            this.periodNanos = periodNanos;
+            this.nextRun = System.nanoTime() + periodNanos;
+        }
+    }
+
+    private final String name;
+    // Any thread can post to it without locking, only the loop thread takes from it
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    // Only used by the loop thread
+    private final List<Periodic> periodicTasks = new ArrayList<>();
+    private final Thread thread;
+
+    public EventLoop(String name) {
+        this.name = name;
+        this.thread = Thread.ofPlatform().name(name).start(this::run);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Runs 'task' on the loop thread, as soon as the tasks posted before it are done
+    public void execute(Runnable task) {
+        mailbox.offer(task);
+        LockSupport.unpark(thread);
+    }
+
+    // Runs 'task' on the loop thread every 'periodMillis', the first time after one period
+    public void scheduleAtFixedRate(Runnable task, long periodMillis) {
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+        execute(() -> periodicTasks.add(new Periodic(task, periodNanos)));
+    }
+
+    // True when called from a task of this loop
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    private void run() {
+        while (true) {
+            Runnable task;
+            while ((task = mailbox.poll()) != null) {
+                runSafely(task);
+            }
+
+            long now = System.nanoTime();
+            long parkNanos = TimeUnit.SECONDS.toNanos(1);
+            for (int i = 0; i < periodicTasks.size(); i++) {
+                Periodic periodic = periodicTasks.get(i);
+                if (now - periodic.nextRun >= 0) {
+                    runSafely(periodic.task);
+                    periodic.nextRun += periodic.periodNanos;
+                    now = System.nanoTime();
+                }
+                parkNanos = Math.min(parkNanos, periodic.nextRun - now);
+            }
+
+            if (mailbox.isEmpty() && parkNanos > 0) {
+                LockSupport.parkNanos(parkNanos);
+            }
+        }
+    }
+
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.error("[%s] %s", name, e.getMessage());
+        }
+    }
+}
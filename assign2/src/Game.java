@@ -2,7 +2,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -15,34 +14,59 @@ import game_logic.TriviaResult;
 
 public class Game {
     private final int gameId;
-    private final List<Client> playerList;
-    private final Lock playerList_lock = new ReentrantLock();
+    private final List<PlayerSession> playerList;
+    private final Lock playerList_lock = InstrumentedLock.create("playerList_lock");
     private TriviaResponse triviaResponse;
     private volatile boolean isGameRunning;
-    private final int ROUNDS = 4;
+    static final int ROUNDS = 4;
     private final ExecutorService playerThreadPool;
-    private final UserDatabase userDatabase;
-    private final ReentrantLock userDatabase_lock;
     private final Server server;
+    // Clients watching the game, they get the questions, answers and scores (not the countdown)
+    private final Spectators spectators;
+    // Round being played, 0 before the first one
+    private volatile int round;
 
     // Amount of rank a player wins (or looses) at the end of a game
-    private final int RANK_INCREMENT = 50;
+    static final int RANK_INCREMENT = 50;
 
-    public Game(int gameId, List<Client> playerList, UserDatabase userDatabase, ReentrantLock userDatabase_lock, Server server) {
+    public Game(int gameId, List<PlayerSession> playerList, Server server, Spectators spectators) {
         this.gameId = gameId;
         this.playerList = playerList;
         this.triviaResponse = new TriviaResponse();
         this.isGameRunning = false;
         this.playerThreadPool = Executors.newVirtualThreadPerTaskExecutor();
-        this.userDatabase = userDatabase;
-        this.userDatabase_lock = userDatabase_lock;
         this.server = server;
+        this.spectators = spectators;
     }
 
     public int getId() {
         return this.gameId;
     }
 
+    public Spectators getSpectators() {
+        return spectators;
+    }
+
+    // First message of a new spectator: the round and the score of each player
+    // Example: "SPECTATE_START 12 2 alice 1 bob 0"
+    public String describe() {
+        StringBuilder message = new StringBuilder(Communication.SPECTATE_START).append(' ').append(gameId).append(' ').append(round);
+        playerList_lock.lock();
+        try {
+            for (PlayerSession player : playerList) {
+                message.append(' ').append(player.getUsername()).append(' ').append(player.getScore());
+            }
+        } finally {
+            playerList_lock.unlock();
+        }
+        return message.toString();
+    }
+
+    // Lets the spectators go if the game ended without reaching endGame
+    public void stopSpectators() {
+        spectators.end(Communication.SPECTATE_END + " -");
+    }
+
     // Loads trivia questions from database
     public void loadQuestions(String dataPath) {
         File jsonFile = new File(dataPath);
@@ -51,7 +75,7 @@ public class Game {
             triviaResponse = objectMapper.readValue(jsonFile, new TypeReference<>() {
             });
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("[Game %d] Failed to load questions: %s", gameId, e.getMessage());
         }
     }
 
@@ -82,9 +106,16 @@ public class Game {
     // Main game loop -> asks questions until rounds are over and then ends game
     private void loop() throws IOException{
         for (int round = 0; round < ROUNDS && isGameRunning; round++) {
-            String log = String.format("[Game %d] Started Round %d", gameId, round + 1);
-            Server.serverLog(log);
+            Log.info("[Game %d] Started Round %d", gameId, round + 1);
+            ServerEvents.Round roundEvent = new ServerEvents.Round();
+            roundEvent.gameId = gameId;
+            roundEvent.round = round + 1;
+            roundEvent.begin();
+            long roundStart = System.nanoTime();
+            this.round = round + 1;
             askQuestionToAllPlayers();
+            Metrics.ROUND_DURATION.recordSince(roundStart);
+            roundEvent.commit();
         }
         endGame();
     }
@@ -92,13 +123,14 @@ public class Game {
     // Ends the game
     private void endGame() throws IOException {
         isGameRunning = false;
-        Client winner = determineWinner();
+        PlayerSession winner = determineWinner();
         if (winner != null) {
             broadcastMessage("Game Over! The winner is: " + winner.getUsername() + " with a score of " + winner.getScore());
             updatePlayersRanks(winner);
         } else {
             broadcastMessage("Game Over! No winner.");
         }
+        spectators.end(Communication.SPECTATE_END + " " + (winner != null ? winner.getUsername() : "-"));
 
         playerList_lock.lock();
         try {
@@ -111,12 +143,12 @@ public class Game {
     }
 
     // Determine who is the winner of the game
-    private Client determineWinner() {
-        Client winner = null;
+    private PlayerSession determineWinner() {
+        PlayerSession winner = null;
         int highestScore = -1;
         playerList_lock.lock();
         try {
-            for (Client player : playerList) {
+            for (PlayerSession player : playerList) {
                 if (player.getScore() > highestScore) {
                     highestScore = player.getScore();
                     winner = player;
@@ -134,9 +166,9 @@ public class Game {
         try {
             playerList.forEach(player -> {
                 try {
-                    Server.writeToClient(player.getSocket(), message);
+                    Server.writeToClient(player.getConnection(), message);
                 } catch (IOException e) {
-                    System.out.println("Error communicating with Client: " + e.getMessage());
+                    Log.warn("[Game %d] Error communicating with Client: %s", gameId, e.getMessage());
                 }
             });
         } finally {
@@ -148,6 +180,7 @@ public class Game {
     private void askQuestionToAllPlayers() {
         TriviaResult question = triviaResponse.getRandomQuestion();
         broadcastMessage("Round Question: " + question.getQuestion());
+        spectators.publish(Communication.SPECTATE_QUESTION + " " + round + " " + question.getQuestion());
 
         CountDownLatch latch = new CountDownLatch(2);
         
@@ -158,7 +191,7 @@ public class Game {
                     try {
                         handlePlayerAnswer(player, question.getCorrectAnswer(), latch);
                     } catch (Exception e) {
-                        Server.serverLog("Server exception: " + e.getMessage());
+                        Log.error("[Game %d] Server exception: %s", gameId, e.getMessage());
                     }
                 })
             );
@@ -174,44 +207,61 @@ public class Game {
     }
 
     // Handles player's question answer
-    private void handlePlayerAnswer(Client player, String correctAnswer, CountDownLatch latch) {
+    private void handlePlayerAnswer(PlayerSession player, String correctAnswer, CountDownLatch latch) {
         try {
-            Server.writeToClient(player.getSocket(), Communication.PROVIDE_ANSWER);
-            String answer = Server.readFromClient(player.getSocket());
-            if (answer == null) {
-                Server.serverLog("Player " + player.getUsername() + " disconnected.");
-                userDatabase_lock.lock();
-                try {
-                    userDatabase.userLoggedOut(player.getUsername());
-                } finally { userDatabase_lock.unlock(); }
+            Server.writeToClient(player.getConnection(), Communication.PROVIDE_ANSWER);
+            long askedAt = System.nanoTime();
+            String answer = Server.readAnswer(player.getConnection());
+            long answerLatency = System.nanoTime() - askedAt;
+            Metrics.ANSWER_LATENCY.recordNanos(answerLatency);
 
+            ServerEvents.AnswerReceived answerEvent = new ServerEvents.AnswerReceived();
+            if (answerEvent.shouldCommit()) {
+                answerEvent.gameId = gameId;
+                answerEvent.usernameHash = ServerEvents.usernameHash(player.getUsername());
+                answerEvent.correct = answer != null && answer.equalsIgnoreCase(correctAnswer);
+                answerEvent.latencyNanos = answerLatency;
+                answerEvent.commit();
+            }
+            if (answer == null) {
+                Log.info("[Game %d] Player %s disconnected.", gameId, player.getUsername());
+                server.logoutUser(player);
+                publishAnswer(player, "none");
             }
             else if (answer.equalsIgnoreCase(correctAnswer)) {
                 player.incrementScore();
-                Server.writeToClient(player.getSocket(), "Correct! Your score: " + player.getScore() + '\n');
+                publishAnswer(player, "correct");
+                Server.writeToClient(player.getConnection(), "Correct! Your score: " + player.getScore() + '\n');
             } else {
-                Server.writeToClient(player.getSocket(), "Incorrect! Correct answer was: " + correctAnswer + '\n');
+                publishAnswer(player, "incorrect");
+                Server.writeToClient(player.getConnection(), "Incorrect! Correct answer was: " + correctAnswer + '\n');
             }
         } catch (IOException e) {
-            System.out.println("Error communicating with Client: " + e.getMessage());
+            Log.warn("[Game %d] Error communicating with Client: %s", gameId, e.getMessage());
         } finally {
             latch.countDown();
         }
     }
 
-    // Updates the player's ranks 
-    private void updatePlayersRanks(Client winner) throws IOException {
-        userDatabase_lock.lock();
-        try {
-            userDatabase.incrementRank(winner.getUsername(), RANK_INCREMENT);
-            userDatabase.incrementRank(opponent(winner).getUsername(), -RANK_INCREMENT);
-        } finally {
-            userDatabase_lock.unlock();
-        }
+    // Tells the spectators how 'player' answered and his score
+    private void publishAnswer(PlayerSession player, String result) {
+        spectators.publish(String.join(" ", Communication.SPECTATE_ANSWER, player.getUsername(), result, String.valueOf(player.getScore())));
+    }
+
+    // Updates the player's ranks
+    // The Clients are updated right away (they may requeue), the user database is updated and
+    // saved later by the RatingUpdater (of his own node, for a player who came with a ticket), so the
+    // game doesn't wait for it
+    private void updatePlayersRanks(PlayerSession winner) {
+        PlayerSession loser = opponent(winner);
+        winner.setRank(winner.getRank() + RANK_INCREMENT);
+        loser.setRank(loser.getRank() - RANK_INCREMENT);
+        server.publishRankChange(winner, RANK_INCREMENT);
+        server.publishRankChange(loser, -RANK_INCREMENT);
     }
 
     // Given 'player' returns it's oponent
-    private Client opponent(Client player) {
+    private PlayerSession opponent(PlayerSession player) {
         playerList_lock.lock();
         try {
             if (playerList.get(0).equals(player)) return playerList.get(1);
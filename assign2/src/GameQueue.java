@@ -0,0 +1,418 @@
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// A named queue of the server (e.g. "simple", "ranked") with its own game mode
+// The Server can host several of them; they share its user database, heartbeat and executors
+// The queue is owned by an EventLoop: only tasks of that loop touch clientQueue and the matchmaker,
+// so they need no lock. Other threads (authentication, games, the heartbeat) post tasks to it
+//
+// With per-core shards (see Server) every shard has its own instance of each named queue, on the
+// shard's loop. Players left alone in a shard for SHARD_HANDOFF_DELAY are handed to the queue of
+// shard 0 ('home') through its loop, so they can meet the players left in the other shards
+//
+// While the Server is linked to a match coordinator the queue keeps its players (pings, positions,
+// reconnections) but forwards them to the coordinator, which forms the matches of every node
+public class GameQueue {
+    private static final int PLAYERS_PER_GAME = 2;
+    // Time (in milliseconds) a player waits in a shard's queue before being handed to the home queue
+    private static final int SHARD_HANDOFF_DELAY = 5000;
+
+    private final String name;
+    // Game Mode : Server.SIMPLE or Server.RANKED
+    private final int gameMode;
+    // Index of the per-core shard that owns this queue (0 without shards)
+    private final int shard;
+    private final Server server;
+    private final Clock clock;
+    private final EventLoop loop;
+    private final ExecutorService matchmakingThreadPool;
+    // Queue of shard 0 with the same name, null for shard 0 itself (and without shards)
+    private GameQueue home;
+
+    // Client Queue (queue positions), only used on the loop
+    private final ClientQueue clientQueue;
+    // {username : client} of the Clients in clientQueue, only used on the loop
+    private final Map<String, PlayerSession> queuedByUsername = new HashMap<>();
+    // Size of clientQueue, for other threads
+    private volatile int queueSize;
+    // Rank index of the queued Clients, only used by Ranked mode, only used on the loop
+    // It is split in rank shards that are matched in parallel (ShardedMatchmaker.matchAll)
+    private final ShardedMatchmaker matchmaker;
+
+    // - Queue position notifications -
+    // Clients in the first NOTIFY_QUEUE_POS_TOP positions are told about every change
+    private static final int NOTIFY_QUEUE_POS_TOP = 10;
+    // Clients further back are only told when they moved at least NOTIFY_QUEUE_POS_MIN_DELTA positions
+    private static final int NOTIFY_QUEUE_POS_MIN_DELTA = 10;
+
+    public GameQueue(String name, int gameMode, int shard, Server server, Clock clock, EventLoop loop, int matchmakingShards,
+                     int matchmakingShardBand, ExecutorService matchmakingThreadPool) {
+        this.name = name;
+        this.gameMode = gameMode;
+        this.shard = shard;
+        this.server = server;
+        this.clock = clock;
+        this.loop = loop;
+        this.matchmakingThreadPool = matchmakingThreadPool;
+        this.clientQueue = new ClientQueue();
+        this.matchmaker = gameMode == Server.RANKED
+                ? new ShardedMatchmaker(matchmakingShards, matchmakingShardBand, Server.MATCHMAKING_BASE_WINDOW, Server.MATCHMAKING_RELAX,
+                        TimeUnit.SECONDS.toMillis(Server.MATCHMAKING_RELAX_INTERVAL), Server.MATCHMAKING_MAX_WINDOW)
+                : null;
+        loop.scheduleAtFixedRate(this::runMatchmakingTick, Server.MATCHMAKING_TICK_INTERVAL);
+    }
+
+    // Makes this queue hand its long waiting players to 'home'
+    public void setHome(GameQueue home) {
+        this.home = home;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getGameMode() {
+        return gameMode;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int size() {
+        return queueSize;
+    }
+
+    // Asks the loop to add a Client to the Queue with specific pos (-1 for the end)
+    // Never blocks nor writes to the socket, so it is cheap for authenticating and game threads
+    public void add(PlayerSession client, int queuePos) {
+        add(client, queuePos, clock.millis());
+    }
+
+    // Adds a Client that already waited, at his saved position (-1 for the end of the queue)
+    // He keeps the join time he had, so his matchmaking window doesn't shrink back
+    public void add(PlayerSession client, int queuePos, long queueJoinTime) {
+        client.setQueue(this);
+        client.setQueueJoinTime(queueJoinTime);
+        loop.execute(() -> enqueueClient(client, queuePos));
+    }
+
+    // Takes a player handed over by another shard's queue, he keeps his waiting time
+    private void handoff(PlayerSession client) {
+        client.setQueue(this);
+        loop.execute(() -> enqueueClient(client, -1));
+    }
+
+    private void runMatchmakingTick() {
+        // The coordinator matches the players while the Server is linked to it
+        if (server.isCoordinated()) return;
+
+        long tickStart = System.nanoTime();
+        matchmakingTick();
+        Metrics.MATCHMAKING_TICK.recordSince(tickStart);
+        if (home != null) {
+            handoffWaitingPlayers();
+        }
+    }
+
+    // Adds a Client to the clientQueue with specific pos and looks for his match
+    // The queue position message is written here, on the loop, while he is still queued: the
+    // player's connection only queues it (see SocketConnection), and it is ahead of anything his
+    // game writes, since he can only be taken out of the queue by a later task of this loop
+    private void enqueueClient(PlayerSession client, int queuePos) {
+        if (queuePos == -1) {
+            clientQueue.add(client);
+        }
+
+        else {
+            clientQueue.add(queuePos - 1, client);
+        }
+        queuedByUsername.put(client.getUsername(), client);
+        int position = clientQueue.position(client);
+        queueSize = clientQueue.size();
+
+        ServerEvents.Enqueue enqueueEvent = new ServerEvents.Enqueue();
+        if (enqueueEvent.shouldCommit()) {
+            enqueueEvent.usernameHash = ServerEvents.usernameHash(client.getUsername());
+            enqueueEvent.queuePosition = position;
+            enqueueEvent.queueSize = queueSize;
+            enqueueEvent.commit();
+        }
+
+        if (gameMode == Server.RANKED) {
+            matchmaker.add(client);
+        }
+        try {
+            notifyClientPosition(client, position);
+        } catch (IOException e) {
+            Log.warn("[QUEUE] Failed to notify client position: %s", e.getMessage());
+        }
+
+        Log.info("[QUEUE] Client %s was added to the %s Queue (%d/%d)", client.getUsername(), name, queueSize, PLAYERS_PER_GAME);
+        if (server.isCoordinated()) {
+            server.getCoordinatorLink().enqueue(this, client);
+        } else {
+            checkForNewGame(client);
+        }
+    }
+
+    private void removeFromQueue(PlayerSession client) {
+        clientQueue.remove(client);
+        queuedByUsername.remove(client.getUsername(), client);
+    }
+
+    // Takes the Client 'username' out of the Queue for a match formed by the coordinator
+    // 'then' runs on the loop with him, it doesn't run if he is no longer in this Queue
+    public void takeForMatch(String username, Consumer<PlayerSession> then) {
+        loop.execute(() -> {
+            PlayerSession client = queuedByUsername.get(username);
+            if (client == null) return;
+
+            removeFromQueue(client);
+            if (matchmaker != null) matchmaker.remove(client);
+            queueSize = clientQueue.size();
+            Metrics.QUEUE_WAIT.recordMillis(clock.millis() - client.getQueueJoinTime());
+            recordDequeue(client, "matched");
+            then.accept(client);
+        });
+    }
+
+    // Sends every queued Client to the coordinator, after (re)connecting to it
+    public void resendToCoordinator() {
+        loop.execute(() -> {
+            for (PlayerSession client : clientQueue.toList()) {
+                server.getCoordinatorLink().enqueue(this, client);
+            }
+        });
+    }
+
+    // Checks if a new Game should start for the Client that just joined the queue
+    private void checkForNewGame(PlayerSession newcomer) {
+        List<PlayerSession> playerList = null;
+
+        switch (gameMode) {
+            case Server.SIMPLE:
+                if (clientQueue.size() >= PLAYERS_PER_GAME) {
+                    playerList = new ArrayList<>(PLAYERS_PER_GAME);
+                    for (int i = 0; i < PLAYERS_PER_GAME; i++) {
+                        playerList.add(clientQueue.get(0));
+                        removeFromQueue(clientQueue.get(0));
+                    }
+                    queueSize = clientQueue.size();
+                }
+                break;
+            case Server.RANKED:
+                // Only the newcomer needs to be matched (O(log n)), the periodic tick matches
+                // players whose windows grew while waiting
+                playerList = matchmaker.findMatch(newcomer, clock.millis());
+                if (playerList != null && !removeMatchedFromQueue(playerList)) {
+                    playerList = null;
+                }
+                break;
+        }
+
+        if (playerList != null) {
+            startNewGames(List.of(playerList));
+        }
+    }
+
+    // Forms every possible game from the Queue in a single pass
+    // Simple mode pairs players in queue order, Ranked mode matches every shard in parallel (ShardedMatchmaker.matchAll)
+    private void matchmakingTick() {
+        long startTime = System.nanoTime();
+        List<List<PlayerSession>> matches = new ArrayList<>();
+        int queuedPlayers;
+
+        queuedPlayers = clientQueue.size();
+        if (queuedPlayers < PLAYERS_PER_GAME) {
+            return;
+        }
+
+        if (gameMode == Server.SIMPLE) {
+            List<PlayerSession> queued = clientQueue.toList();
+            for (int i = 0; i + PLAYERS_PER_GAME <= queued.size(); i += PLAYERS_PER_GAME) {
+                List<PlayerSession> playerList = new ArrayList<>(queued.subList(i, i + PLAYERS_PER_GAME));
+                playerList.forEach(this::removeFromQueue);
+                matches.add(playerList);
+            }
+            queueSize = clientQueue.size();
+        }
+
+        if (gameMode == Server.RANKED) {
+            matches = matchmaker.matchAll(clock.millis(), matchmakingThreadPool);
+            matches.removeIf(playerList -> !removeMatchedFromQueue(playerList));
+        }
+
+        if (!matches.isEmpty()) {
+            startNewGames(matches);
+            Log.info("[MATCHMAKING] %s tick formed %d games from %d queued players in %d ms (interval %d ms%s)",
+                    name, matches.size(), queuedPlayers, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+                    Server.MATCHMAKING_TICK_INTERVAL, matchmaker != null ? ", " + matchmaker.shardCount() + " shards" : "");
+        }
+    }
+
+    // Removes the players of a ranked match from the Queue
+    // A player may have left the Queue (disconnected) after being matched, in that case the match
+    // is cancelled and the other players go back to the matchmaker
+    // Returns false if the match was cancelled
+    private boolean removeMatchedFromQueue(List<PlayerSession> playerList) {
+        for (PlayerSession client : playerList) {
+            if (!clientQueue.contains(client)) {
+                for (PlayerSession other : playerList) {
+                    if (other != client && clientQueue.contains(other)) {
+                        matchmaker.add(other);
+                    }
+                }
+                return false;
+            }
+        }
+
+        for (PlayerSession client : playerList) {
+            removeFromQueue(client);
+        }
+        queueSize = clientQueue.size();
+        return true;
+    }
+
+    // Hands the players that waited SHARD_HANDOFF_DELAY in this shard to the home queue
+    private void handoffWaitingPlayers() {
+        long now = clock.millis();
+        for (PlayerSession client : clientQueue.toList()) {
+            if (now - client.getQueueJoinTime() < SHARD_HANDOFF_DELAY) continue;
+
+            removeFromQueue(client);
+            if (matchmaker != null) matchmaker.remove(client);
+            recordDequeue(client, "handoff");
+            Log.debug("[QUEUE] Client %s handed over to the %s Queue of shard 0", client.getUsername(), name);
+            home.handoff(client);
+        }
+        queueSize = clientQueue.size();
+    }
+
+    // Hands the matched players to the Server, which starts their games
+    private void startNewGames(List<List<PlayerSession>> playerLists) {
+        long now = clock.millis();
+        for (List<PlayerSession> playerList : playerLists) {
+            for (PlayerSession player : playerList) {
+                Metrics.QUEUE_WAIT.recordMillis(now - player.getQueueJoinTime());
+                recordDequeue(player, "matched");
+            }
+        }
+        server.startNewGames(playerLists);
+    }
+
+    // Records a JFR event for a player leaving the Queue
+    private void recordDequeue(PlayerSession client, String reason) {
+        ServerEvents.Dequeue event = new ServerEvents.Dequeue();
+        if (event.shouldCommit()) {
+            event.usernameHash = ServerEvents.usernameHash(client.getUsername());
+            event.reason = reason;
+            event.waitMillis = clock.millis() - client.getQueueJoinTime();
+            event.commit();
+        }
+    }
+
+    // Clients in the Queue in order, read on the loop (for the snapshot taken on shutdown)
+    public CompletableFuture<List<PlayerSession>> queuedClients() {
+        CompletableFuture<List<PlayerSession>> clients = new CompletableFuture<>();
+        loop.execute(() -> clients.complete(clientQueue.toList()));
+        return clients;
+    }
+
+    // Asks the loop to ping every Client in the Queue and remove the ones that don't answer
+    public void pingAllClients() {
+        loop.execute(this::pingRound);
+    }
+
+    // Pings the queued Clients all at once, each on a virtual thread, and waits for their answers off
+    // the loop (at most the ping timeout), so the loop keeps matching meanwhile. Only the removal of
+    // the ones that didn't answer goes back to the loop
+    private void pingRound() {
+        List<PlayerSession> queued = clientQueue.toList();
+        if (queued.isEmpty()) return;
+
+        Thread.startVirtualThread(() -> {
+            List<Future<Boolean>> answers = new ArrayList<>(queued.size());
+            try (ExecutorService pings = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (PlayerSession client : queued) {
+                    answers.add(pings.submit(() -> server.pingClient(client)));
+                }
+            }
+
+            List<PlayerSession> unanswered = new ArrayList<>();
+            for (int i = 0; i < queued.size(); i++) {
+                if (!answers.get(i).resultNow()) unanswered.add(queued.get(i));
+            }
+            if (!unanswered.isEmpty()) loop.execute(() -> removeUnanswered(unanswered));
+        });
+    }
+
+    // Removes the Clients that didn't answer a ping and are still in the Queue
+    // A Client matched (or moved to another shard) while his ping waited is left to his game or new queue
+    // The Server saves the position of the removed ones, so they can reconnect to it
+    private void removeUnanswered(List<PlayerSession> unanswered) {
+        for (PlayerSession client : unanswered) {
+            if (queuedByUsername.get(client.getUsername()) != client) continue;
+
+            int queuePos = clientQueue.position(client);
+            removeFromQueue(client);
+            recordDequeue(client, "disconnected");
+            if (matchmaker != null) matchmaker.remove(client);
+            if (server.isCoordinated()) server.getCoordinatorLink().dequeue(this, client);
+            server.clientDisconnected(client, queuePos);
+            Log.info("[QUEUE] Client %s disconnected from the %s Queue (%d/%d)", client.getUsername(), name, clientQueue.size(), PLAYERS_PER_GAME);
+            try {
+                client.getConnection().close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        queueSize = clientQueue.size();
+    }
+
+    // Sends a message to the Client regarding his Queue position
+    private void notifyClientPosition(PlayerSession client, int position) throws IOException {
+        client.setNotifiedQueuePosition(position);
+        String message = "Your queue position: " + position;
+        Server.writeToClient(client.getConnection(), message);
+    }
+
+    // Checks if a Client should be told about his new Queue position
+    private static boolean shouldNotifyPosition(int notifiedPosition, int position) {
+        if (position == notifiedPosition) return false;
+        return position <= NOTIFY_QUEUE_POS_TOP || Math.abs(position - notifiedPosition) >= NOTIFY_QUEUE_POS_MIN_DELTA;
+    }
+
+    // Notifies clients whose Queue position changed
+    // Positions are compared and written on the loop, so a message never reaches a Client that already
+    // left the queue; writes only queue the message, so a slow client delays no one
+    public void notifyAllClientsPositions() {
+        loop.execute(this::notifyPositions);
+    }
+
+    private void notifyPositions() {
+        List<PlayerSession> queued = clientQueue.toList();
+
+        for (int i = 0; i < queued.size(); i++) {
+            PlayerSession client = queued.get(i);
+            int position = i + 1;
+            if (!shouldNotifyPosition(client.getNotifiedQueuePosition(), position)) continue;
+
+            try {
+                notifyClientPosition(client, position);
+            } catch (IOException e) {
+                Log.warn("[QUEUE] Failed to notify client position: %s", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// One end of a connection whose messages stay in memory
+// pair() returns both ends: what one writes, the other reads. Closing either end closes both,
+// and a read on a closed connection returns null, like a socket whose peer closed
+public class InMemoryConnection implements Connection {
+    // Marks the end of the messages, it is compared by reference
+    private static final String CLOSED = new String("CLOSED");
+
+    private final BlockingQueue<String> incoming;
+    private InMemoryConnection peer;
+    private volatile boolean closed;
+
+    private InMemoryConnection(BlockingQueue<String> incoming) {
+        this.incoming = incoming;
+    }
+
+    // Returns the two ends of a new connection
+    public static InMemoryConnection[] pair() {
+        InMemoryConnection first = new InMemoryConnection(new LinkedBlockingQueue<>());
+        InMemoryConnection second = new InMemoryConnection(new LinkedBlockingQueue<>());
+        first.peer = second;
+        second.peer = first;
+        return new InMemoryConnection[] {first, second};
+    }
+
+    public void write(String message) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        peer.incoming.add(message);
+    }
+
+    public void writeEncoded(byte[] message) throws IOException {
+        write(new String(message, 0, message.length - 1, StandardCharsets.UTF_8));
+    }
+
+    public String read() throws IOException {
+        if (closed && incoming.isEmpty()) return null;
+        try {
+            String message = incoming.take();
+            if (message == CLOSED) {
+                // Leave it for any other reader
+                incoming.add(CLOSED);
+                return null;
+            }
+            return message;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading");
+        }
+    }
+
+    public String read(long timeoutMillis) throws IOException {
+        if (closed && incoming.isEmpty()) return null;
+        try {
+            String message = incoming.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (message == null) {
+                throw new SocketTimeoutException("No message within " + timeoutMillis + " ms");
+            }
+            if (message == CLOSED) {
+                incoming.add(CLOSED);
+                return null;
+            }
+            return message;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading");
+        }
+    }
+
+    // Next message if one is already there, without blocking (null otherwise)
+    public String poll() {
+        String message = incoming.poll();
+        if (message == CLOSED) {
+            incoming.add(CLOSED);
+            return null;
+        }
+        return message;
+    }
+
+    // Its reads have no login time limit
+    public void endHandshake() {
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // The messages written before are already with the peer, they are read before the end
+    public void closeAfterFlush() {
+        close();
+    }
+
+    public void close() {
+        if (closed) return;
+        closed = true;
+        incoming.add(CLOSED);
+        peer.close();
+    }
+}
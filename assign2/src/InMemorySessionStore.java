@@ -0,0 +1,107 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// SessionStore kept in the memory of the process (the default, and the state behind a SessionStoreServer)
+// The maps are concurrent, so the authenticating threads don't share a lock to use them
+public class InMemorySessionStore implements SessionStore {
+    // {token hash : username} and {username : token hash}, a user has one token at a time
+    private final Map<String, String> usernames = new ConcurrentHashMap<>();
+    private final Map<String, String> tokens = new ConcurrentHashMap<>();
+    // {username : owner of his login}, the owner is the server connection that logged him in on a
+    // SessionStoreServer (LOCAL_OWNER inside a single server), so its logins can be released with it
+    private final Map<String, Object> loggedInUsers = new ConcurrentHashMap<>();
+    private static final Object LOCAL_OWNER = new Object();
+    // {username : queue position when he disconnected}
+    private final Map<String, Server.ReconnectPosition> reconnectPositions = new ConcurrentHashMap<>();
+
+    public void putToken(String tokenHash, String username) {
+        String previous = tokens.put(username, tokenHash);
+        if (previous != null) {
+            usernames.remove(previous, username);
+        }
+        usernames.put(tokenHash, username);
+    }
+
+    public String getUsername(String tokenHash) {
+        return usernames.get(tokenHash);
+    }
+
+    public boolean login(String username) {
+        return login(username, LOCAL_OWNER);
+    }
+
+    // Marks 'username' as logged in by 'owner', false if he already was
+    public boolean login(String username, Object owner) {
+        return loggedInUsers.putIfAbsent(username, owner) == null;
+    }
+
+    public void logout(String username) {
+        loggedInUsers.remove(username);
+    }
+
+    // Logs out every user logged in by 'owner', returns how many
+    public int releaseLogins(Object owner) {
+        int released = 0;
+        for (Map.Entry<String, Object> entry : loggedInUsers.entrySet()) {
+            if (entry.getValue() == owner && loggedInUsers.remove(entry.getKey(), owner)) released++;
+        }
+        return released;
+    }
+
+    public void putReconnectPosition(String username, Server.ReconnectPosition position) {
+        reconnectPositions.put(username, position);
+    }
+
+    public Server.ReconnectPosition getReconnectPosition(String username) {
+        return reconnectPositions.get(username);
+    }
+
+    public void close() {
+    }
+
+    // Writes the tokens and reconnect positions, for the restart snapshot (see Server.shutdown)
+    // Token hashes are written as their 32 raw bytes; who is logged in isn't saved, a restart disconnects everyone
+    public void writeTo(DataOutput out) throws IOException {
+        Map<String, String> tokensCopy = Map.copyOf(tokens);
+        out.writeInt(tokensCopy.size());
+        for (Map.Entry<String, String> entry : tokensCopy.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.write(HexFormat.of().parseHex(entry.getValue()));
+        }
+
+        Map<String, Server.ReconnectPosition> positionsCopy = Map.copyOf(reconnectPositions);
+        out.writeInt(positionsCopy.size());
+        for (Map.Entry<String, Server.ReconnectPosition> entry : positionsCopy.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue().queue());
+            out.writeShort(entry.getValue().shard());
+            out.writeInt(entry.getValue().position());
+            out.writeLong(entry.getValue().queueJoinTime());
+        }
+    }
+
+    // Reads what writeTo wrote
+    public void readFrom(DataInput in) throws IOException {
+        byte[] hash = new byte[32];
+        int tokenCount = in.readInt();
+        for (int i = 0; i < tokenCount; i++) {
+            String username = in.readUTF();
+            in.readFully(hash);
+            putToken(HexFormat.of().formatHex(hash), username);
+        }
+
+        int positionCount = in.readInt();
+        for (int i = 0; i < positionCount; i++) {
+            String username = in.readUTF();
+            String queue = in.readUTF();
+            int shard = in.readShort();
+            int position = in.readInt();
+            long queueJoinTime = in.readLong();
+            reconnectPositions.put(username, new Server.ReconnectPosition(queue, shard, position, queueJoinTime));
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lock that measures how long threads wait for it and how long they hold it
+// Opt-in with -Dlocks.instrumented=true, otherwise create() returns a plain ReentrantLock.
+// Locks created with the same name share their statistics (e.g. every game's playerList lock).
+// Wait and hold times are Metrics histograms (trivia_lock_<name>_wait_seconds / _hold_seconds),
+// and the stack of the longest hold is kept for report()
+//
+// It wraps a ReentrantLock, so every way of taking the lock (lock, lockInterruptibly, tryLock) goes
+// through it. A thread waiting on one of its conditions doesn't hold the lock: the hold ends when
+// the wait starts and a new one starts when the wait returns
+public class InstrumentedLock implements Lock {
+    private static final boolean ENABLED = Boolean.getBoolean("locks.instrumented");
+
+    // Statistics shared by every lock with the same name
+    private static class LockStats {
+        final Metrics.Histogram wait;
+        final Metrics.Histogram hold;
+        // Read without the monitor by every unlock, written with it
+        final AtomicLong maxHoldNanos = new AtomicLong();
+        // Guarded by the LockStats monitor
+        String maxHoldThread;
+        StackTraceElement[] maxHoldStack;
+
+        LockStats(String name) {
+            this.wait = Metrics.histogram("trivia_lock_" + name + "_wait_seconds", "Time spent waiting to acquire " + name);
+            this.hold = Metrics.histogram("trivia_lock_" + name + "_hold_seconds", "Time " + name + " was held");
+        }
+    }
+
+    // {name : stats}
+    private static final Map<String, LockStats> stats = new ConcurrentSkipListMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LockStats lockStats;
+    // When the current owner acquired the lock, only used by the owner
+    private long acquiredAt;
+
+    private InstrumentedLock(LockStats lockStats) {
+        this.lockStats = lockStats;
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    // Creates a lock named 'name', instrumented only when -Dlocks.instrumented=true
+    public static Lock create(String name) {
+        if (!ENABLED) return new ReentrantLock();
+        return new InstrumentedLock(stats.computeIfAbsent(name, LockStats::new));
+    }
+
+    @Override
+    public void lock() {
+        if (lock.isHeldByCurrentThread()) {
+            lock.lock();
+            return;
+        }
+
+        long start = System.nanoTime();
+        lock.lock();
+        acquired(start);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (lock.isHeldByCurrentThread()) {
+            lock.lockInterruptibly();
+            return;
+        }
+
+        long start = System.nanoTime();
+        lock.lockInterruptibly();
+        acquired(start);
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (lock.isHeldByCurrentThread()) return lock.tryLock();
+
+        long start = System.nanoTime();
+        if (!lock.tryLock()) return false;
+        acquired(start);
+        return true;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (lock.isHeldByCurrentThread()) return lock.tryLock(time, unit);
+
+        long start = System.nanoTime();
+        if (!lock.tryLock(time, unit)) return false;
+        acquired(start);
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        if (lock.getHoldCount() == 1) {
+            released();
+        }
+        lock.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+        return new InstrumentedCondition(lock.newCondition());
+    }
+
+    // Starts a hold, the owner waited since 'start'
+    private void acquired(long start) {
+        acquiredAt = System.nanoTime();
+        lockStats.wait.recordNanos(acquiredAt - start);
+    }
+
+    // Ends the hold of the owner, who is about to release the lock
+    private void released() {
+        long held = System.nanoTime() - acquiredAt;
+        lockStats.hold.recordNanos(held);
+        if (held > lockStats.maxHoldNanos.get()) {
+            recordLongestHold(held);
+        }
+    }
+
+    // Keeps the stack of the longest hold, taken while releasing the lock
+    private void recordLongestHold(long held) {
+        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        synchronized (lockStats) {
+            if (held > lockStats.maxHoldNanos.get()) {
+                lockStats.maxHoldNanos.set(held);
+                lockStats.maxHoldThread = Thread.currentThread().toString();
+                lockStats.maxHoldStack = stack;
+            }
+        }
+    }
+
+    // Condition of an InstrumentedLock
+    // Waiting releases the lock, so the hold is ended before the wait and started again after it
+    // (the time spent getting the lock back is part of the wait, not counted as waiting for the lock)
+    private class InstrumentedCondition implements Condition {
+        private final Condition condition;
+
+        InstrumentedCondition(Condition condition) {
+            this.condition = condition;
+        }
+
+        // Ends the hold before a wait, false if the caller doesn't own the lock (the wait will throw)
+        private boolean beforeWait() {
+            if (!lock.isHeldByCurrentThread()) return false;
+            released();
+            return true;
+        }
+
+        @Override
+        public void await() throws InterruptedException {
+            boolean held = beforeWait();
+            try {
+                condition.await();
+            } finally {
+                if (held) acquiredAt = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void awaitUninterruptibly() {
+            boolean held = beforeWait();
+            try {
+                condition.awaitUninterruptibly();
+            } finally {
+                if (held) acquiredAt = System.nanoTime();
+            }
+        }
+
+        @Override
+        public long awaitNanos(long nanosTimeout) throws InterruptedException {
+            boolean held = beforeWait();
+            try {
+                return condition.awaitNanos(nanosTimeout);
+            } finally {
+                if (held) acquiredAt = System.nanoTime();
+            }
+        }
+
+        @Override
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            boolean held = beforeWait();
+            try {
+                return condition.await(time, unit);
+            } finally {
+                if (held) acquiredAt = System.nanoTime();
+            }
+        }
+
+        @Override
+        public boolean awaitUntil(Date deadline) throws InterruptedException {
+            boolean held = beforeWait();
+            try {
+                return condition.awaitUntil(deadline);
+            } finally {
+                if (held) acquiredAt = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void signal() {
+            condition.signal();
+        }
+
+        @Override
+        public void signalAll() {
+            condition.signalAll();
+        }
+    }
+
+    // Wait/hold summary of every instrumented lock, with the stack of its longest hold
+    public static String report() {
+        if (!ENABLED) return "Lock instrumentation is disabled, start the server with -Dlocks.instrumented=true\n";
+
+        StringBuilder out = new StringBuilder();
+        stats.forEach((name, lockStats) -> {
+            out.append(String.format("%s: acquired %d times, wait p50 %.6fs p99 %.6fs, hold p50 %.6fs p99 %.6fs%n",
+                    name, lockStats.wait.count(), lockStats.wait.quantile(0.5), lockStats.wait.quantile(0.99),
+                    lockStats.hold.quantile(0.5), lockStats.hold.quantile(0.99)));
+
+            synchronized (lockStats) {
+                if (lockStats.maxHoldStack != null) {
+                    out.append(String.format("  longest hold %.6fs by %s%n", lockStats.maxHoldNanos.get() / 1e9, lockStats.maxHoldThread));
+                    // Skip getStackTrace and the frames of this class (unlock, or a Condition's await)
+                    int first = 1;
+                    while (first < lockStats.maxHoldStack.length
+                            && lockStats.maxHoldStack[first].getClassName().startsWith(InstrumentedLock.class.getName())) {
+                        first++;
+                    }
+                    for (int i = first; i < lockStats.maxHoldStack.length; i++) {
+                        out.append("    at ").append(lockStats.maxHoldStack[i]).append('\n');
+                    }
+                }
+            }
+        });
+        return out.toString();
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Index of every user's rank, kept up to date by UserDatabase
+// - Fenwick tree with the amount of users per rank value, to get a user's position in O(log n)
+// - Rank -> usernames tree, to list the top players and the players around a user
+// It has its own lock, so queries don't wait for the user database
+public class Leaderboard {
+    // Rank values tracked by the Fenwick tree, ranks outside are counted at the edges
+    private static final int MIN_RANK = -10000;
+    private static final int MAX_RANK = 10000;
+
+    public record Entry(int position, String username, int rank) {}
+
+    private final long[] counts = new long[MAX_RANK - MIN_RANK + 2];
+    private final TreeMap<Integer, NavigableSet<String>> byRank = new TreeMap<>();
+    private final Map<String, Integer> ranks = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Adds a user or moves him to his new rank
+    public void updateRank(String username, int rank) {
+        lock.writeLock().lock();
+        try {
+            Integer oldRank = ranks.put(username, rank);
+            if (oldRank != null) {
+                if (oldRank == rank) return;
+                NavigableSet<String> users = byRank.get(oldRank);
+                users.remove(username);
+                if (users.isEmpty()) byRank.remove(oldRank);
+                addCount(oldRank, -1);
+            }
+
+            byRank.computeIfAbsent(rank, r -> new TreeSet<>()).add(username);
+            addCount(rank, 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ranks.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Global position of a user (1 is the best, users with the same rank share the position)
+    // Returns -1 if the user is unknown
+    public int getPosition(String username) {
+        lock.readLock().lock();
+        try {
+            Integer rank = ranks.get(username);
+            return rank != null ? positionOf(rank) : -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Percentage of users ranked below 'username' (100 is the best)
+    // Returns -1 if the user is unknown
+    public double getPercentile(String username) {
+        lock.readLock().lock();
+        try {
+            Integer rank = ranks.get(username);
+            if (rank == null) return -1;
+            long below = ranks.size() - countAtLeast(rank);
+            return 100.0 * below / ranks.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The 'k' best users
+    public List<Entry> getTop(int k) {
+        lock.readLock().lock();
+        try {
+            List<Entry> top = new ArrayList<>(k);
+            int position = 1;
+            for (Map.Entry<Integer, NavigableSet<String>> bucket : byRank.descendingMap().entrySet()) {
+                for (String username : bucket.getValue()) {
+                    if (top.size() == k) return top;
+                    top.add(new Entry(position, username, bucket.getKey()));
+                }
+                position += bucket.getValue().size();
+            }
+            return top;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to 'k' users above and 'k' users below 'username', plus himself, best first
+    // Returns an empty list if the user is unknown
+    public List<Entry> getAround(String username, int k) {
+        lock.readLock().lock();
+        try {
+            Integer rank = ranks.get(username);
+            if (rank == null) return List.of();
+
+            // Users with the same rank are ordered by name
+            List<String> above = new ArrayList<>();
+            Iterator<String> sameAbove = byRank.get(rank).headSet(username, false).descendingIterator();
+            while (above.size() < k && sameAbove.hasNext()) above.add(sameAbove.next());
+            for (NavigableSet<String> users : byRank.tailMap(rank, false).values()) {
+                Iterator<String> iterator = users.descendingIterator();
+                while (above.size() < k && iterator.hasNext()) above.add(iterator.next());
+                if (above.size() == k) break;
+            }
+
+            List<String> below = new ArrayList<>();
+            for (String other : byRank.get(rank).tailSet(username, false)) {
+                if (below.size() == k) break;
+                below.add(other);
+            }
+            for (NavigableSet<String> users : byRank.headMap(rank, false).descendingMap().values()) {
+                for (String other : users) {
+                    if (below.size() == k) break;
+                    below.add(other);
+                }
+                if (below.size() == k) break;
+            }
+
+            List<Entry> around = new ArrayList<>(above.size() + below.size() + 1);
+            for (int i = above.size() - 1; i >= 0; i--) around.add(entryOf(above.get(i)));
+            around.add(entryOf(username));
+            for (String other : below) around.add(entryOf(other));
+            return around;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Entry entryOf(String username) {
+        int rank = ranks.get(username);
+        return new Entry(positionOf(rank), username, rank);
+    }
+
+    // 1 + amount of users with a higher rank
+    private int positionOf(int rank) {
+        return (int) countAtLeast(rank + 1) + 1;
+    }
+
+    // Amount of users with rank >= 'rank'
+    private long countAtLeast(int rank) {
+        return ranks.size() - prefixCount(rank - 1);
+    }
+
+    // Amount of users with rank <= 'rank'
+    private long prefixCount(int rank) {
+        if (rank < MIN_RANK) return 0;
+        long count = 0;
+        for (int i = index(rank); i > 0; i -= i & -i) {
+            count += counts[i];
+        }
+        return count;
+    }
+
+    private void addCount(int rank, int delta) {
+        for (int i = index(rank); i < counts.length; i += i & -i) {
+            counts[i] += delta;
+        }
+    }
+
+    // Fenwick tree index (1 based) of a rank value
+    private static int index(int rank) {
+        return Math.max(MIN_RANK, Math.min(MAX_RANK, rank)) - MIN_RANK + 1;
+    }
+}
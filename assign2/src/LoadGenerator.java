@@ -0,0 +1,531 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import game_logic.TriviaResponse;
+import game_logic.TriviaResult;
+
+// Headless load generator: runs scripted players (bots) against a server, one virtual thread each
+// Bots log in (registering their account first if asked), wait in the queue, answer questions
+// with a configurable delay and accuracy, and then requeue or quit and log in again.
+// Some of them can drop their connection while queued and come back with their session token.
+// Bots sent to another server by a match coordinator (REDIRECT) follow it with their ticket.
+// Spectator bots watch the most watched game, one after the other, to load the spectator fan-out.
+// Usage: java LoadGenerator <hostname> <port> [options], see printUsage
+public class LoadGenerator {
+
+    // - Options -
+    private int bots = 100;
+    private long durationMillis = TimeUnit.SECONDS.toMillis(60);
+    private long rampUpMillis = TimeUnit.SECONDS.toMillis(10);
+    private String prefix = "bot";
+    private String password = "botpassword";
+    private boolean register = false;
+    // Probability of answering a question right
+    private double accuracy = 0.5;
+    private long answerDelayMinMillis = 200;
+    private long answerDelayMaxMillis = 1000;
+    // Probability of requeueing after a game (otherwise the bot quits and logs in again)
+    private double requeue = 0.9;
+    // Probability of dropping the connection while queued and reconnecting with the token
+    private double reconnect = 0.0;
+    // Time a dropped bot stays away, long enough for the server's pings (every 3 s) to notice it left
+    private long reconnectDelayMillis = 8000;
+    private long reportIntervalMillis = 5000;
+    private String questionsPath = "src/database/questions.json";
+    // Queue joined when the server offers several, null for the first one
+    private String queue;
+    private int spectators = 0;
+
+    private final String hostname;
+    private final int port;
+    private volatile boolean running = true;
+    private long startTime;
+    // {question : correct answer}, so bots can answer right (or wrong) on purpose
+    private final Map<String, String> answers = new HashMap<>();
+
+    // - Statistics -
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder registrations = new LongAdder();
+    private final LongAdder reconnections = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder gamesStarted = new LongAdder();
+    private final LongAdder gamesFinished = new LongAdder();
+    private final LongAdder answersSent = new LongAdder();
+    private final LongAdder answersCorrect = new LongAdder();
+    private final Samples authLatency = new Samples();
+    private final Samples timeToMatch = new Samples();
+    private final Samples answerRoundTrip = new Samples();
+    private final LongAdder spectatorEvents = new LongAdder();
+    private final LongAdder gamesWatched = new LongAdder();
+    private final LongAdder spectatorsDropped = new LongAdder();
+    // {error : count}
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    public LoadGenerator(String hostname, int port) {
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    // Durations (in nanoseconds) kept whole, so the percentiles are exact
+    private static class Samples {
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void add(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        // "p50 / p90 / p99 / max" in milliseconds
+        String summary() {
+            long[] sorted;
+            synchronized (this) {
+                sorted = Arrays.copyOf(values, size);
+            }
+            if (sorted.length == 0) return "-";
+            Arrays.sort(sorted);
+            return String.format("p50 %.1f ms / p90 %.1f ms / p99 %.1f ms / max %.1f ms (%d samples)",
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    sorted[sorted.length - 1] / 1e6, sorted.length);
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    private void error(String error) {
+        errors.computeIfAbsent(error, e -> new LongAdder()).increment();
+    }
+
+    // What a bot does after its connection ends
+    private enum After { LOGIN, RECONNECT, REDIRECT, STOP }
+
+    // One scripted player
+    private class Bot implements Runnable {
+        private final String username;
+        private boolean registered = !register;
+        private String token;
+        private boolean reconnecting;
+        private volatile Socket socket;
+        // The bot is waiting in the queue (the drop timer only closes the socket then)
+        private volatile boolean inQueue;
+        private volatile boolean dropped;
+        // Server and ticket of the match it was sent to, null when it isn't moving
+        private String redirectHost;
+        private int redirectPort;
+        private String ticket;
+
+        // - Times (System.nanoTime) -
+        private long authSentAt;
+        private long queuedAt;
+        private long answerSentAt;
+        private String question;
+
+        Bot(String username) {
+            this.username = username;
+        }
+
+        public void run() {
+            while (running) {
+                After after;
+                try (Socket newSocket = ticket != null ? new Socket(redirectHost, redirectPort) : new Socket(hostname, port)) {
+                    socket = newSocket;
+                    connections.increment();
+                    after = session(newSocket);
+                } catch (IOException e) {
+                    if (!running) break;
+                    if (!dropped) error("I/O error: " + e.getClass().getSimpleName());
+                    ticket = null;
+                    after = dropped ? After.RECONNECT : After.LOGIN;
+                } finally {
+                    inQueue = false;
+                }
+
+                if (after == After.STOP || !running) break;
+                if (after == After.REDIRECT) continue;
+                reconnecting = after == After.RECONNECT && token != null;
+                dropped = false;
+                pause(reconnecting ? reconnectDelayMillis : answerDelayMaxMillis);
+            }
+        }
+
+        // Talks with the server until the connection ends
+        private After session(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+
+            String message;
+            while ((message = reader.readLine()) != null) {
+                if (message.equals(Communication.PING)) {
+                    writer.println(Communication.PONG);
+                } else if (message.equals(Communication.WELCOME)) {
+                    authSentAt = System.nanoTime();
+                    if (ticket != null) {
+                        writer.println(Communication.CLIENT_JOIN_MATCH + " " + ticket);
+                        ticket = null;
+                    } else if (!registered) writer.println(Communication.CLIENT_REGISTER);
+                    else if (reconnecting) writer.println(Communication.CLIENT_RECONNECT);
+                    else writer.println(Communication.CLIENT_AUTH);
+                } else if (message.equals(Communication.REGISTER_USERNAME) || message.equals(Communication.AUTH_USERNAME)) {
+                    writer.println(username);
+                } else if (message.equals(Communication.REGISTER_PASSWORD) || message.equals(Communication.AUTH_PASSWORD)) {
+                    writer.println(password);
+                } else if (message.equals(Communication.REGISTER_SUCCESS)) {
+                    registered = true;
+                    registrations.increment();
+                } else if (message.equals(Communication.REGISTER_FAIL)) {
+                    // Most likely the account exists from a previous run, log in with it
+                    registered = true;
+                    return After.LOGIN;
+                } else if (message.equals(Communication.AUTH_SUCCESS)) {
+                    logins.increment();
+                    authLatency.add(System.nanoTime() - authSentAt);
+                    joinedQueue();
+                } else if (message.startsWith(Communication.TOKEN)) {
+                    token = message.substring(Communication.TOKEN.length()).trim();
+                } else if (message.startsWith(Communication.QUEUE_SELECT)) {
+                    writer.println(queue != null ? queue : message.split(" ")[1]);
+                } else if (message.equals(Communication.REQUEST_TOKEN)) {
+                    writer.println(token);
+                } else if (message.startsWith(Communication.RECONNECT_SUCCESS)) {
+                    reconnections.increment();
+                    authLatency.add(System.nanoTime() - authSentAt);
+                    joinedQueue();
+                } else if (message.equals(Communication.AUTH_FAIL) || message.equals(Communication.AUTH_ALREADY_LOGGED_IN)
+                        || message.equals(Communication.RECONNECT_FAIL) || message.equals(Communication.RECONNECT_ALREADY_LOGGED_IN)) {
+                    error(message);
+                    return After.LOGIN;
+                } else if (message.startsWith(Communication.REDIRECT)) {
+                    String[] parts = message.split(" ");
+                    redirectHost = parts[1];
+                    redirectPort = Integer.parseInt(parts[2]);
+                    ticket = parts[3];
+                    redirects.increment();
+                    return After.REDIRECT;
+                } else if (message.equals(Communication.JOIN_MATCH_FAIL)) {
+                    error(message);
+                    return After.LOGIN;
+                } else if (message.contains("Welcome to the Trivia!")) {
+                    inQueue = false;
+                    gamesStarted.increment();
+                    timeToMatch.add(System.nanoTime() - queuedAt);
+                } else if (message.startsWith("Round Question: ")) {
+                    question = message.substring("Round Question: ".length());
+                } else if (message.equals(Communication.PROVIDE_ANSWER)) {
+                    pause(ThreadLocalRandom.current().nextLong(answerDelayMinMillis, answerDelayMaxMillis + 1));
+                    writer.println(answer());
+                    answerSentAt = System.nanoTime();
+                    answersSent.increment();
+                } else if (message.startsWith("Correct!") || message.startsWith("Incorrect!")) {
+                    answerRoundTrip.add(System.nanoTime() - answerSentAt);
+                    if (message.startsWith("Correct!")) answersCorrect.increment();
+                } else if (message.equals(Communication.REQUEUE_OR_QUIT)) {
+                    gamesFinished.increment();
+                    if (running && ThreadLocalRandom.current().nextDouble() < requeue) {
+                        writer.println(Communication.REQUEUE);
+                        joinedQueue();
+                    } else {
+                        writer.println(Communication.QUIT);
+                        return running ? After.LOGIN : After.STOP;
+                    }
+                }
+            }
+
+            if (dropped) return After.RECONNECT;
+            if (running) error("Connection closed by server");
+            return After.LOGIN;
+        }
+
+        // Answers right with probability 'accuracy' when the question is known, randomly otherwise
+        private String answer() {
+            String correct = question != null ? answers.get(question) : null;
+            if (correct == null) {
+                return ThreadLocalRandom.current().nextBoolean() ? "True" : "False";
+            }
+            if (ThreadLocalRandom.current().nextDouble() < accuracy) return correct;
+            return correct.equalsIgnoreCase("True") ? "False" : "True";
+        }
+
+        private void joinedQueue() {
+            queuedAt = System.nanoTime();
+            inQueue = true;
+            if (ThreadLocalRandom.current().nextDouble() < reconnect) {
+                scheduleDrop(ThreadLocalRandom.current().nextLong(1000, 5001));
+            }
+        }
+
+        // Closes the connection after 'delayMillis' if the bot is still waiting in the queue
+        private void scheduleDrop(long delayMillis) {
+            Socket queuedSocket = socket;
+            Thread.ofVirtual().start(() -> {
+                pause(delayMillis);
+                if (inQueue && socket == queuedSocket && running) {
+                    dropped = true;
+                    closeQuietly(queuedSocket);
+                }
+            });
+        }
+
+        private void close() {
+            Socket current = socket;
+            if (current != null) closeQuietly(current);
+        }
+    }
+
+    // Watches games: asks for the list, watches the first one (the most watched) until it ends, and again
+    private class Spectator implements Runnable {
+        private volatile Socket socket;
+
+        public void run() {
+            while (running) {
+                try (Socket newSocket = new Socket(hostname, port)) {
+                    socket = newSocket;
+                    connections.increment();
+                    watch(newSocket);
+                } catch (IOException e) {
+                    if (!running) break;
+                    error("Spectator I/O error: " + e.getClass().getSimpleName());
+                }
+                if (running) {
+                    spectatorsDropped.increment();
+                    pause(1000);
+                }
+            }
+        }
+
+        // Talks with the server until the connection ends
+        private void watch(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            boolean noGames = false;
+
+            String message;
+            while ((message = reader.readLine()) != null) {
+                if (message.equals(Communication.WELCOME)) {
+                    // Nothing to watch last time, wait for games to start
+                    if (noGames) pause(1000);
+                    writer.println(Communication.CLIENT_SPECTATE);
+                } else if (message.startsWith(Communication.SPECTATE_GAMES)) {
+                    String[] games = message.split(" ");
+                    noGames = games.length == 1;
+                    writer.println(noGames ? "" : games[1]);
+                } else if (message.equals(Communication.SPECTATE_END)
+                        || message.startsWith(Communication.SPECTATE_END + " ")) {
+                    spectatorEvents.increment();
+                    gamesWatched.increment();
+                } else if (message.startsWith("SPECTATE_") && !message.equals(Communication.SPECTATE_FAIL)) {
+                    spectatorEvents.increment();
+                }
+            }
+        }
+
+        private void close() {
+            Socket current = socket;
+            if (current != null) closeQuietly(current);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Loads the questions, so bots know the correct answers
+    private void loadAnswers() {
+        try {
+            TriviaResponse triviaResponse = new ObjectMapper().readValue(new File(questionsPath), new TypeReference<>() {
+            });
+            for (TriviaResult result : triviaResponse.getResults()) {
+                answers.put(result.getQuestion(), result.getCorrectAnswer());
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't load questions (" + e.getMessage() + "), bots will answer randomly");
+        }
+    }
+
+    // Starts the bots spread over the ramp up, runs for the configured duration and reports
+    public void run() throws InterruptedException {
+        loadAnswers();
+        startTime = System.nanoTime();
+        System.out.printf("Starting %d bots against %s:%d for %d s%n", bots, hostname, port, TimeUnit.MILLISECONDS.toSeconds(durationMillis));
+
+        List<Bot> botList = new ArrayList<>(bots);
+        List<Thread> threads = new ArrayList<>(bots);
+        List<Spectator> spectatorList = new ArrayList<>(spectators);
+        for (int i = 0; i < spectators; i++) {
+            Spectator spectator = new Spectator();
+            spectatorList.add(spectator);
+            threads.add(Thread.ofVirtual().name("spectator" + i).start(spectator));
+        }
+        Thread starter = Thread.ofVirtual().start(() -> {
+            for (int i = 1; i <= bots && running; i++) {
+                Bot bot = new Bot(prefix + i);
+                synchronized (botList) {
+                    botList.add(bot);
+                    threads.add(Thread.ofVirtual().name(bot.username).start(bot));
+                }
+                if (rampUpMillis > 0) pause(rampUpMillis / bots);
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + durationMillis;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(Math.min(reportIntervalMillis, Math.max(1, deadline - System.currentTimeMillis())));
+            report(false);
+        }
+
+        running = false;
+        starter.join();
+        synchronized (botList) {
+            botList.forEach(Bot::close);
+        }
+        spectatorList.forEach(Spectator::close);
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        report(true);
+    }
+
+    private void report(boolean last) {
+        double elapsed = (System.nanoTime() - startTime) / 1e9;
+        if (!last) {
+            System.out.printf("[%5.0f s] connections %d (%.1f/s), logins %d, games %d, answers %d, errors %d%n",
+                    elapsed, connections.sum(), connections.sum() / elapsed, logins.sum(), gamesStarted.sum(),
+                    answersSent.sum(), errors.values().stream().mapToLong(LongAdder::sum).sum());
+            return;
+        }
+
+        System.out.println();
+        System.out.printf("--- Results after %.1f s ---%n", elapsed);
+        System.out.printf("Connections:        %d (%.1f/s)%n", connections.sum(), connections.sum() / elapsed);
+        System.out.printf("Registrations:      %d%n", registrations.sum());
+        System.out.printf("Logins:             %d%n", logins.sum());
+        System.out.printf("Reconnections:      %d%n", reconnections.sum());
+        System.out.printf("Redirects:          %d%n", redirects.sum());
+        System.out.printf("Games:              %d started, %d finished%n", gamesStarted.sum(), gamesFinished.sum());
+        System.out.printf("Answers:            %d (%d correct)%n", answersSent.sum(), answersCorrect.sum());
+        System.out.printf("Auth latency:       %s%n", authLatency.summary());
+        System.out.printf("Time to match:      %s%n", timeToMatch.summary());
+        System.out.printf("Answer round trip:  %s%n", answerRoundTrip.summary());
+        if (spectators > 0) {
+            System.out.printf("Spectators:         %d, %d games watched, %d events, %d dropped%n",
+                    spectators, gamesWatched.sum(), spectatorEvents.sum(), spectatorsDropped.sum());
+        }
+        if (errors.isEmpty()) {
+            System.out.println("Errors:             0");
+        } else {
+            System.out.println("Errors:");
+            errors.forEach((error, count) -> System.out.printf("  %-30s %d%n", error, count.sum()));
+        }
+    }
+
+    // Reads "--option value" pairs, returns false if any is invalid
+    private boolean parseOptions(String[] args) {
+        for (int i = 2; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--register")) {
+                register = true;
+                continue;
+            }
+            if (i + 1 >= args.length) return false;
+            String value = args[++i];
+
+            switch (option) {
+                case "--bots" -> bots = Integer.parseInt(value);
+                case "--duration" -> durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                case "--ramp-up" -> rampUpMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                case "--prefix" -> prefix = value;
+                case "--password" -> password = value;
+                case "--accuracy" -> accuracy = Double.parseDouble(value);
+                case "--answer-delay" -> {
+                    String[] range = value.split("-");
+                    answerDelayMinMillis = Long.parseLong(range[0]);
+                    answerDelayMaxMillis = range.length > 1 ? Long.parseLong(range[1]) : answerDelayMinMillis;
+                }
+                case "--requeue" -> requeue = Double.parseDouble(value);
+                case "--reconnect" -> reconnect = Double.parseDouble(value);
+                case "--reconnect-delay" -> reconnectDelayMillis = Long.parseLong(value);
+                case "--report-interval" -> reportIntervalMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                case "--questions" -> questionsPath = value;
+                case "--queue" -> queue = value;
+                case "--spectators" -> spectators = Integer.parseInt(value);
+                default -> {
+                    return false;
+                }
+            }
+        }
+        return bots > 0 && answerDelayMinMillis <= answerDelayMaxMillis;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java LoadGenerator <hostname> <port> [options]");
+        System.out.println("  --bots <n>                 Amount of bots (100)");
+        System.out.println("  --duration <s>             Duration of the run in seconds (60)");
+        System.out.println("  --ramp-up <s>              Time over which the bots are started (10)");
+        System.out.println("  --prefix <name>            Bots are named <prefix>1 .. <prefix>n (bot)");
+        System.out.println("  --password <password>      Password of every bot (botpassword)");
+        System.out.println("  --register                 Create the bots' accounts first (skipped if they exist)");
+        System.out.println("  --accuracy <0..1>          Probability of answering right (0.5)");
+        System.out.println("  --answer-delay <min-max>   Time to answer in milliseconds (200-1000)");
+        System.out.println("  --requeue <0..1>           Probability of requeueing after a game (0.9)");
+        System.out.println("  --reconnect <0..1>         Probability of dropping while queued and reconnecting with the token (0)");
+        System.out.println("  --reconnect-delay <ms>     Time before reconnecting (8000)");
+        System.out.println("  --report-interval <s>      Interval of the progress lines (5)");
+        System.out.println("  --questions <path>         Questions file, to know the right answers (src/database/questions.json)");
+        System.out.println("  --queue <name>             Queue to join when the server has several (the first one offered)");
+        System.out.println("  --spectators <n>           Extra clients that watch the most watched game (0)");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            printUsage();
+            return;
+        }
+
+        LoadGenerator loadGenerator = new LoadGenerator(args[0], Integer.parseInt(args[1]));
+        boolean valid;
+        try {
+            valid = loadGenerator.parseOptions(args);
+        } catch (NumberFormatException e) {
+            valid = false;
+        }
+        if (!valid) {
+            printUsage();
+            return;
+        }
+
+        loadGenerator.run();
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous server logger
+// Callers only claim a preallocated event in a ring buffer and store the format and its arguments,
+// the logger thread formats and prints them. Messages below the configured level (-Dlog.level=DEBUG|INFO|WARN|ERROR,
+// INFO by default, an unknown level is reported and replaced by INFO) return before doing anything, and when
+// the buffer is full new messages are dropped (and counted) instead of blocking the caller, who may be holding a lock
+// The logger thread sleeps while the buffer is empty, the caller that publishes a message wakes it up
+public final class Log {
+    private Log() {}
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int BUFFER_SIZE = 1 << 14;
+    private static final int MASK = BUFFER_SIZE - 1;
+    private static final Object[] NO_ARGS = new Object[0];
+
+    // Slot of the ring buffer, reused for every message that passes through it
+    private static final class Event {
+        // Sequence number of the message stored in the slot, written last to publish it
+        volatile long sequence = -1;
+        Level level;
+        long timestamp;
+        String format;
+        Object arg0, arg1, arg2;
+        Object[] args;
+        int argCount;
+    }
+
+    private static final String configuredLevel = System.getProperty("log.level", "INFO");
+    private static final Level level = parseLevel(configuredLevel);
+    private static final Event[] buffer = new Event[BUFFER_SIZE];
+    // Next sequence number to be claimed by a caller
+    private static final AtomicLong claimed = new AtomicLong();
+    // Next sequence number to be printed by the logger thread
+    private static volatile long consumed = 0;
+    // Every message before this sequence number is printed and flushed, written by the logger thread
+    private static volatile long flushed = 0;
+    // True while the logger thread is parked (or about to park) waiting for a message
+    private static volatile boolean sleeping = false;
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread loggerThread;
+
+    static {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            buffer[i] = new Event();
+        }
+        loggerThread = Thread.ofPlatform().name("logger").daemon(true).start(Log::drain);
+        if (!level.name().equalsIgnoreCase(configuredLevel)) {
+            warn("[LOG] Unknown log level %s, using %s", configuredLevel, level);
+        }
+    }
+
+    // Level named by -Dlog.level, INFO if there is no such level
+    private static Level parseLevel(String name) {
+        for (Level candidate : Level.values()) {
+            if (candidate.name().equalsIgnoreCase(name.trim())) return candidate;
+        }
+        return Level.INFO;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    public static void debug(String message) { log(Level.DEBUG, message, null, null, null, null, 0); }
+    public static void debug(String format, Object arg0) { log(Level.DEBUG, format, arg0, null, null, null, 1); }
+    public static void debug(String format, Object arg0, Object arg1) { log(Level.DEBUG, format, arg0, arg1, null, null, 2); }
+
+    public static void info(String message) { log(Level.INFO, message, null, null, null, null, 0); }
+    public static void info(String format, Object arg0) { log(Level.INFO, format, arg0, null, null, null, 1); }
+    public static void info(String format, Object arg0, Object arg1) { log(Level.INFO, format, arg0, arg1, null, null, 2); }
+    public static void info(String format, Object arg0, Object arg1, Object arg2) { log(Level.INFO, format, arg0, arg1, arg2, null, 3); }
+    public static void info(String format, Object... args) { log(Level.INFO, format, null, null, null, args, args.length); }
+
+    public static void warn(String message) { log(Level.WARN, message, null, null, null, null, 0); }
+    public static void warn(String format, Object arg0) { log(Level.WARN, format, arg0, null, null, null, 1); }
+    public static void warn(String format, Object arg0, Object arg1) { log(Level.WARN, format, arg0, arg1, null, null, 2); }
+
+    public static void error(String message) { log(Level.ERROR, message, null, null, null, null, 0); }
+    public static void error(String format, Object arg0) { log(Level.ERROR, format, arg0, null, null, null, 1); }
+    public static void error(String format, Object arg0, Object arg1) { log(Level.ERROR, format, arg0, arg1, null, null, 2); }
+
+    // Time (in milliseconds) flush waits at most, in case the output is stuck
+    private static final long FLUSH_TIMEOUT = 2000;
+
+    // Waits until every message logged before the call is printed and flushed
+    // The logger is a daemon thread, so what is still in the buffer is lost when the JVM exits:
+    // the shutdown hook calls this last
+    public static void flush() {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT);
+        while (flushed < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(loggerThread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    // Amount of messages dropped because the buffer was full
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    private static void log(Level messageLevel, String format, Object arg0, Object arg1, Object arg2, Object[] args, int argCount) {
+        if (!isEnabled(messageLevel)) return;
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= BUFFER_SIZE) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Event event = buffer[(int) (sequence & MASK)];
+        event.level = messageLevel;
+        event.timestamp = System.currentTimeMillis();
+        event.format = format;
+        event.arg0 = arg0;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.args = args;
+        event.argCount = argCount;
+        event.sequence = sequence;
+
+        // The logger thread sets 'sleeping' before its last look at the buffer, so either it sees this
+        // message or this sees it sleeping
+        if (sleeping) {
+            LockSupport.unpark(loggerThread);
+        }
+    }
+
+    // Logger thread: prints events in order, flushing when it catches up and then parking until a message comes
+    private static void drain() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        long next = 0;
+        long reportedDrops = 0;
+        boolean unflushed = false;
+
+        while (true) {
+            Event event = buffer[(int) (next & MASK)];
+            if (event.sequence != next) {
+                try {
+                    long drops = dropped.sum();
+                    if (drops != reportedDrops) {
+                        out.write(String.format("%s WARN  [LOG] Dropped %d messages, buffer was full%n", Instant.now(), drops - reportedDrops));
+                        reportedDrops = drops;
+                        unflushed = true;
+                    }
+                    if (unflushed) {
+                        out.flush();
+                        unflushed = false;
+                    }
+                } catch (IOException e) {
+                    // Nowhere to report it
+                }
+                flushed = next;
+                sleeping = true;
+                if (event.sequence != next) {
+                    LockSupport.park();
+                }
+                sleeping = false;
+                continue;
+            }
+
+            try {
+                out.write(format(event));
+                out.write(System.lineSeparator());
+                unflushed = true;
+            } catch (IOException | RuntimeException e) {
+                // A bad format or argument must not stop the logger
+            }
+
+            event.format = null;
+            event.arg0 = event.arg1 = event.arg2 = null;
+            event.args = null;
+            next++;
+            consumed = next;
+        }
+    }
+
+    private static String format(Event event) {
+        String message;
+        if (event.argCount == 0) {
+            message = event.format;
+        } else {
+            Object[] args = event.args != null ? event.args : switch (event.argCount) {
+                case 1 -> new Object[] {event.arg0};
+                case 2 -> new Object[] {event.arg0, event.arg1};
+                case 3 -> new Object[] {event.arg0, event.arg1, event.arg2};
+                default -> NO_ARGS;
+            };
+            message = String.format(event.format, args);
+        }
+        return String.format("%s %-5s %s", Instant.ofEpochMilli(event.timestamp), event.level, message);
+    }
+}
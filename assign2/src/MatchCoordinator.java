@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Matchmaking coordinator for several game servers (nodes)
+// Nodes connect over TCP and register (NODE_REGISTER), then forward every player that joins one of
+// their queues (NODE_ENQUEUE) or leaves it (NODE_DEQUEUE). The coordinator matches the players of
+// every node with the same rules as a single Server, and gives each match to a node with spare
+// capacity, preferring the node where most of its players already are. That node gets MATCH_HOST,
+// and the node of every player gets MATCH_PLAYER to move him there (see Communication)
+// All the matching state is owned by one EventLoop, so it needs no locks
+//
+// Nodes are trusted (they host games and move players), so the coordinator only listens on the
+// loopback interface unless told otherwise, and a node must know the shared secret to register
+//
+// java MatchCoordinator <port> --secret <secret> [--bind <address>],
+// or MatchCoordinator.start(address, port, secret) to run it in-process
+public class MatchCoordinator {
+    private static final int PLAYERS_PER_GAME = 2;
+
+    // A registered game server
+    private static class Node {
+        final String id;
+        final String host;
+        final int port;
+        final int capacity;
+        final Connection connection;
+        // Games it is running, as last reported plus the matches given to it since
+        int games;
+
+        Node(String id, String host, int port, int capacity, Connection connection) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+            this.capacity = capacity;
+            this.connection = connection;
+        }
+    }
+
+    // Players of every node waiting in a queue with the same name
+    private static class CoordinatorQueue {
+        final int gameMode;
+        final ClientQueue queue = new ClientQueue();
+        final MatchmakingPool pool = new MatchmakingPool(Server.MATCHMAKING_BASE_WINDOW, Server.MATCHMAKING_RELAX,
+                TimeUnit.SECONDS.toMillis(Server.MATCHMAKING_RELAX_INTERVAL), Server.MATCHMAKING_MAX_WINDOW);
+        // {username : player}
+        final Map<String, PlayerSession> players = new HashMap<>();
+
+        CoordinatorQueue(int gameMode) {
+            this.gameMode = gameMode;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final byte[] secret;
+    private final EventLoop loop = new EventLoop("coordinator");
+    // Everything below is only used on the loop
+    // {node id : node}
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    // {queue name : queue}
+    private final Map<String, CoordinatorQueue> queues = new HashMap<>();
+    // {player : node he is connected to}
+    private final Map<PlayerSession, Node> homes = new HashMap<>();
+    private int matchId = 1;
+
+    private MatchCoordinator(ServerSocket serverSocket, String secret) {
+        this.serverSocket = serverSocket;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Starts a coordinator listening on 'port' of 'bindAddress' (0 for any free port, see getPort)
+    // Nodes must register with 'secret'
+    public static MatchCoordinator start(InetAddress bindAddress, int port, String secret) throws IOException {
+        if (secret == null || !secret.matches("\\S+")) {
+            throw new IllegalArgumentException("The coordinator needs a secret without spaces");
+        }
+        MatchCoordinator coordinator = new MatchCoordinator(new ServerSocket(port, 50, bindAddress), secret);
+        coordinator.loop.scheduleAtFixedRate(coordinator::matchmakingTick, Server.MATCHMAKING_TICK_INTERVAL);
+        Thread.ofPlatform().name("coordinator-acceptor").start(coordinator::acceptNodes);
+        return coordinator;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptNodes() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Connection connection = new SocketConnection(socket);
+                SocketAddress address = socket.getRemoteSocketAddress();
+                Thread.startVirtualThread(() -> readNode(connection, address));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.warn("[COORDINATOR] Failed to accept a node: %s", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Reads the messages of a node and hands them to the loop
+    // The first one must be NODE_REGISTER with the right secret
+    private void readNode(Connection connection, SocketAddress address) {
+        Node node = null;
+        try {
+            String message = connection.read();
+            String[] parts = message != null ? message.split(" ") : new String[0];
+            if (parts.length != 6 || !parts[0].equals(Communication.NODE_REGISTER)
+                    || !MessageDigest.isEqual(secret, parts[1].getBytes(StandardCharsets.UTF_8))) {
+                Log.warn("[COORDINATOR] Refused a node from %s: bad registration", address);
+                connection.close();
+                return;
+            }
+            node = new Node(parts[2], parts[3], Integer.parseInt(parts[4]), Integer.parseInt(parts[5]), connection);
+            Node registered = node;
+            loop.execute(() -> registerNode(registered));
+
+            while ((message = connection.read()) != null) {
+                String[] fields = message.split(" ");
+                loop.execute(() -> handleNodeMessage(registered, fields));
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.warn("[COORDINATOR] Error reading node %s: %s", node != null ? node.id : "?", e.getMessage());
+        }
+
+        if (node != null) {
+            Node gone = node;
+            loop.execute(() -> removeNode(gone));
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void registerNode(Node node) {
+        Node previous = nodes.put(node.id, node);
+        if (previous != null) removePlayersOf(previous);
+        Log.info("[COORDINATOR] Node %s registered (%s:%d, capacity %d)", node.id, node.host, node.port, node.capacity);
+    }
+
+    private void removeNode(Node node) {
+        if (nodes.get(node.id) != node) return;
+        nodes.remove(node.id);
+        removePlayersOf(node);
+        Log.info("[COORDINATOR] Node %s left", node.id);
+    }
+
+    // Removes every queued player of 'node', he can't be moved anymore
+    private void removePlayersOf(Node node) {
+        for (CoordinatorQueue queue : queues.values()) {
+            for (PlayerSession player : new ArrayList<>(queue.players.values())) {
+                if (homes.get(player) == node) removePlayer(queue, player);
+            }
+        }
+    }
+
+    private void handleNodeMessage(Node node, String[] fields) {
+        if (nodes.get(node.id) != node) return;
+
+        switch (fields[0]) {
+            case Communication.NODE_ENQUEUE -> enqueue(node, fields[1], Integer.parseInt(fields[2]), fields[3], Integer.parseInt(fields[4]));
+            case Communication.NODE_DEQUEUE -> {
+                CoordinatorQueue queue = queues.get(fields[1]);
+                PlayerSession player = queue != null ? queue.players.get(fields[2]) : null;
+                if (player != null && homes.get(player) == node) removePlayer(queue, player);
+            }
+            case Communication.NODE_LOAD -> node.games = Integer.parseInt(fields[1]);
+            case Communication.NODE_RANK_CHANGE -> forwardRankChange(node, fields[1], fields[2], fields[3]);
+            default -> Log.warn("[COORDINATOR] Unknown message from node %s: %s", node.id, fields[0]);
+        }
+    }
+
+    // Adds a player to the end of the queue and looks for his match
+    private void enqueue(Node node, String queueName, int gameMode, String username, int rank) {
+        CoordinatorQueue queue = queues.computeIfAbsent(queueName, name -> new CoordinatorQueue(gameMode));
+        PlayerSession previous = queue.players.get(username);
+        if (previous != null) removePlayer(queue, previous);
+
+        PlayerSession player = new PlayerSession(null);
+        player.setUsername(username);
+        player.setRank(rank);
+        player.setQueueJoinTime(System.currentTimeMillis());
+        queue.players.put(username, player);
+        queue.queue.add(player);
+        homes.put(player, node);
+
+        if (queue.gameMode == Server.RANKED) {
+            queue.pool.add(player);
+            PlayerSession opponent = queue.pool.findOpponent(player, System.currentTimeMillis());
+            if (opponent != null) {
+                queue.pool.remove(player);
+                queue.pool.remove(opponent);
+                if (!assign(queueName, queue, List.of(opponent, player))) {
+                    queue.pool.add(opponent);
+                    queue.pool.add(player);
+                }
+            }
+        } else if (queue.queue.size() >= PLAYERS_PER_GAME) {
+            assign(queueName, queue, List.of(queue.queue.get(0), queue.queue.get(1)));
+        }
+    }
+
+    // Hands the rank change of a player who played on 'host' to the node he came from, which keeps his user
+    private void forwardRankChange(Node host, String homeNodeId, String username, String rankDelta) {
+        Node home = nodes.get(homeNodeId);
+        if (home == null) {
+            Log.warn("[COORDINATOR] Lost a rank change of %s, node %s is gone", username, homeNodeId);
+            return;
+        }
+        send(home, String.join(" ", Communication.RANK_CHANGE, username, rankDelta));
+        Log.debug("[COORDINATOR] Rank change of %s sent from node %s", username, host.id);
+    }
+
+    private void removePlayer(CoordinatorQueue queue, PlayerSession player) {
+        queue.players.remove(player.getUsername());
+        queue.queue.remove(player);
+        queue.pool.remove(player);
+        homes.remove(player);
+    }
+
+    // Forms every possible match, like Server's matchmaking tick
+    private void matchmakingTick() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CoordinatorQueue> entry : queues.entrySet()) {
+            CoordinatorQueue queue = entry.getValue();
+            if (queue.queue.size() < PLAYERS_PER_GAME) continue;
+
+            if (queue.gameMode == Server.RANKED) {
+                for (List<PlayerSession> players : queue.pool.matchAll(now)) {
+                    if (!assign(entry.getKey(), queue, players)) {
+                        players.forEach(queue.pool::add);
+                    }
+                }
+            } else {
+                List<PlayerSession> queued = queue.queue.toList();
+                for (int i = 0; i + PLAYERS_PER_GAME <= queued.size(); i += PLAYERS_PER_GAME) {
+                    if (!assign(entry.getKey(), queue, queued.subList(i, i + PLAYERS_PER_GAME))) break;
+                }
+            }
+        }
+    }
+
+    // Gives a match to a node and tells the nodes of its players to move them there
+    // Returns false (and changes nothing) if no node has spare capacity
+    private boolean assign(String queueName, CoordinatorQueue queue, List<PlayerSession> players) {
+        Node host = chooseHost(players);
+        if (host == null) {
+            Log.warn("[COORDINATOR] No node has capacity for a %s match", queueName);
+            return false;
+        }
+
+        int id = matchId++;
+        StringBuilder hostMessage = new StringBuilder(Communication.MATCH_HOST).append(' ').append(id).append(' ').append(queueName);
+        List<String> playerMessages = new ArrayList<>(players.size());
+        List<Node> playerNodes = new ArrayList<>(players.size());
+        for (PlayerSession player : players) {
+            String ticket = UUID.randomUUID().toString();
+            hostMessage.append(' ').append(player.getUsername()).append(' ').append(player.getRank()).append(' ').append(ticket)
+                    .append(' ').append(homes.get(player).id);
+            playerMessages.add(String.join(" ", Communication.MATCH_PLAYER, String.valueOf(id), queueName, player.getUsername(),
+                    host.id, host.host, String.valueOf(host.port), ticket));
+            playerNodes.add(homes.get(player));
+        }
+        players.forEach(player -> removePlayer(queue, player));
+        host.games++;
+
+        // The host first, so it knows the tickets before the players arrive
+        send(host, hostMessage.toString());
+        for (int i = 0; i < playerMessages.size(); i++) {
+            send(playerNodes.get(i), playerMessages.get(i));
+        }
+        Log.info("[COORDINATOR] Match %d (%s) assigned to node %s", id, queueName, host.id);
+        return true;
+    }
+
+    // Node with spare capacity where most of the players are, the one with the most spare capacity on a tie
+    private Node chooseHost(List<PlayerSession> players) {
+        Node best = null;
+        int bestPlayers = -1;
+        for (Node node : nodes.values()) {
+            if (node.games >= node.capacity) continue;
+
+            int localPlayers = 0;
+            for (PlayerSession player : players) {
+                if (homes.get(player) == node) localPlayers++;
+            }
+            if (best == null || localPlayers > bestPlayers
+                    || (localPlayers == bestPlayers && node.capacity - node.games > best.capacity - best.games)) {
+                best = node;
+                bestPlayers = localPlayers;
+            }
+        }
+        return best;
+    }
+
+    private void send(Node node, String message) {
+        try {
+            node.connection.write(message);
+        } catch (IOException e) {
+            Log.warn("[COORDINATOR] Failed to send to node %s: %s", node.id, e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String secret = null;
+        InetAddress bindAddress = InetAddress.getLoopbackAddress();
+        boolean valid = args.length >= 1 && args.length % 2 == 1;
+        for (int i = 1; valid && i < args.length; i += 2) {
+            switch (args[i]) {
+                case "--secret" -> secret = args[i + 1];
+                case "--bind" -> bindAddress = InetAddress.getByName(args[i + 1]);
+                default -> valid = false;
+            }
+        }
+        if (!valid || secret == null) {
+            System.out.println("Usage: java MatchCoordinator <port> --secret <secret> [--bind <address>]");
+            System.out.println("  --secret <secret>   Secret the nodes register with (their --coordinator-secret)");
+            System.out.println("  --bind <address>    Address to listen on, e.g. 0.0.0.0 for every interface (loopback)");
+            return;
+        }
+
+        MatchCoordinator coordinator = start(bindAddress, Integer.parseInt(args[0]), secret);
+        Log.info("Match coordinator is listening on %s:%d", bindAddress.getHostAddress(), coordinator.getPort());
+    }
+}
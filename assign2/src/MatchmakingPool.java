@@ -0,0 +1,153 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Rank index of the queued Clients, used by Ranked mode to find opponents
+// Clients are grouped in buckets by rank and each bucket keeps arrival order (FIFO)
+// Every Client has his own tolerance window, which grows with the time he has been waiting.
+// Two Clients can play each other when their windows overlap:
+//   |rankA - rankB| <= window(A) + window(B)
+// Not thread safe, each ShardedMatchmaker shard guards its pool with its own lock
+public class MatchmakingPool {
+    // {rank : clients with that rank, oldest first}
+    private final TreeMap<Integer, ArrayDeque<PlayerSession>> buckets;
+    private int size;
+
+    // - Tolerance window -
+    // Window of a Client that just joined
+    private final int baseWindow;
+    // Amount added to the window every relaxInterval of waiting
+    private final int windowRelax;
+    private final long relaxIntervalMillis;
+    // Upper bound of any window
+    private final int maxWindow;
+
+    public MatchmakingPool(int baseWindow, int windowRelax, long relaxIntervalMillis, int maxWindow) {
+        this.buckets = new TreeMap<>();
+        this.size = 0;
+        this.baseWindow = baseWindow;
+        this.windowRelax = windowRelax;
+        this.relaxIntervalMillis = relaxIntervalMillis;
+        this.maxWindow = maxWindow;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Adds a Client to the end of his rank bucket
+    public void add(PlayerSession client) {
+        buckets.computeIfAbsent(client.getRank(), rank -> new ArrayDeque<>()).addLast(client);
+        size++;
+    }
+
+    // Removes a Client from the pool
+    // Returns false if the client was not in the pool
+    public boolean remove(PlayerSession client) {
+        ArrayDeque<PlayerSession> bucket = buckets.get(client.getRank());
+        if (bucket == null || !bucket.remove(client)) return false;
+        if (bucket.isEmpty()) buckets.remove(client.getRank());
+        size--;
+        return true;
+    }
+
+    public boolean contains(PlayerSession client) {
+        ArrayDeque<PlayerSession> bucket = buckets.get(client.getRank());
+        return bucket != null && bucket.contains(client);
+    }
+
+    // Every Client with rank >= minRank, by rank
+    public List<PlayerSession> clientsFrom(int minRank) {
+        List<PlayerSession> clients = new ArrayList<>();
+        for (ArrayDeque<PlayerSession> bucket : buckets.tailMap(minRank, true).values()) {
+            clients.addAll(bucket);
+        }
+        return clients;
+    }
+
+    public void clear() {
+        buckets.clear();
+        size = 0;
+    }
+
+    // Tolerance window of a Client at time 'now'
+    public int window(PlayerSession client, long now) {
+        long waited = Math.max(0, now - client.getQueueJoinTime());
+        long window = baseWindow + windowRelax * (waited / relaxIntervalMillis);
+        return (int) Math.min(window, maxWindow);
+    }
+
+    // Finds the closest ranked opponent for 'client' whose window overlaps his
+    // Buckets are visited by distance to the client's rank and the search stops once no
+    // window could reach, so only O(log n) lookups are made for a bounded window.
+    // Only the head of each bucket is checked: it has waited the longest, so it has the largest window
+    // Returns null if there is no compatible opponent
+    public PlayerSession findOpponent(PlayerSession client, long now) {
+        int rank = client.getRank();
+        int reach = window(client, now);
+
+        ArrayDeque<PlayerSession> sameRank = buckets.get(rank);
+        if (sameRank != null) {
+            for (PlayerSession candidate : sameRank) {
+                if (candidate != client) return candidate;
+            }
+        }
+
+        Map.Entry<Integer, ArrayDeque<PlayerSession>> lower = buckets.lowerEntry(rank);
+        Map.Entry<Integer, ArrayDeque<PlayerSession>> higher = buckets.higherEntry(rank);
+
+        while (lower != null || higher != null) {
+            int lowerDiff = lower != null ? rank - lower.getKey() : Integer.MAX_VALUE;
+            int higherDiff = higher != null ? higher.getKey() - rank : Integer.MAX_VALUE;
+
+            Map.Entry<Integer, ArrayDeque<PlayerSession>> closest = lowerDiff <= higherDiff ? lower : higher;
+            int diff = Math.min(lowerDiff, higherDiff);
+            if (diff > reach + maxWindow) {
+                return null;
+            }
+
+            PlayerSession candidate = closest.getValue().peekFirst();
+            if (diff <= reach + window(candidate, now)) {
+                return candidate;
+            }
+
+            if (closest == lower) lower = buckets.lowerEntry(lower.getKey());
+            else higher = buckets.higherEntry(higher.getKey());
+        }
+
+        return null;
+    }
+
+    // Pairs as many Clients as possible in one pass
+    // Buckets are already sorted by rank, so walking them gives the players in rank order
+    // (FIFO inside each rank) and neighbours are paired greedily when their windows overlap.
+    // Matched Clients are removed from the pool
+    public List<List<PlayerSession>> matchAll(long now) {
+        List<PlayerSession> sorted = new ArrayList<>(size);
+        for (ArrayDeque<PlayerSession> bucket : buckets.values()) {
+            sorted.addAll(bucket);
+        }
+
+        List<List<PlayerSession>> matches = new ArrayList<>();
+        int i = 0;
+        while (i + 1 < sorted.size()) {
+            PlayerSession first = sorted.get(i);
+            PlayerSession second = sorted.get(i + 1);
+            if (second.getRank() - first.getRank() <= window(first, now) + window(second, now)) {
+                List<PlayerSession> playerList = new ArrayList<>(2);
+                playerList.add(first);
+                playerList.add(second);
+                matches.add(playerList);
+                remove(first);
+                remove(second);
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+
+        return matches;
+    }
+}
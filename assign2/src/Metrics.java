@@ -0,0 +1,357 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Server metrics: counters, gauges and latency histograms
+// Metrics are created once (static fields) and updating them doesn't allocate.
+// They can be read through JMX (MBean "trivia:type=Metrics") and as plain text over HTTP
+// (GET /metrics on localhost, see startHttpServer)
+public final class Metrics {
+    private Metrics() {}
+
+    // {name : metric}
+    private static final Map<String, Metric> registry = new ConcurrentSkipListMap<>();
+
+    // - Connections -
+    public static final Counter CONNECTIONS_ACCEPTED = counter("trivia_connections_accepted_total", "Sockets accepted by the server");
+    public static final Gauge CONNECTIONS_PRE_AUTH = gauge("trivia_connections_pre_auth", "Accepted connections that haven't finished logging in");
+    public static final Histogram ACCEPT_THROTTLE = histogram("trivia_accept_throttle_seconds", "Time an acceptor waited for the accept rate limit or a free pre-auth slot");
+    public static final Histogram OUTBOUND_LAG = histogram("trivia_outbound_lag_seconds", "Time messages to players waited before being written to their socket");
+    public static final Counter SLOW_CLIENTS_EVICTED = counter("trivia_slow_clients_evicted_total", "Players disconnected because they didn't keep up with their messages");
+    public static final Histogram AUTH_LATENCY = histogram("trivia_auth_seconds", "Time to check a client's credentials, including waiting for the user database lock");
+    public static final Histogram BCRYPT_LATENCY = histogram("trivia_bcrypt_seconds", "Time spent checking a password with bcrypt (session tokens are SHA-256 hashes)");
+
+    // - Queue and matchmaking -
+    public static final Gauge QUEUE_LENGTH = gauge("trivia_queue_length", "Players waiting in the queue");
+    public static final Histogram QUEUE_WAIT = histogram("trivia_queue_wait_seconds", "Time a player waited in the queue before his game started");
+    public static final Histogram MATCHMAKING_TICK = histogram("trivia_matchmaking_tick_seconds", "Duration of a batch matchmaking tick");
+
+    // - Games -
+    public static final Gauge GAMES_IN_FLIGHT = gauge("trivia_games_in_flight", "Games currently running");
+    public static final Counter GAMES_STARTED = counter("trivia_games_started_total", "Games started");
+    public static final Histogram ROUND_DURATION = histogram("trivia_round_seconds", "Duration of a game round");
+    public static final Histogram ANSWER_LATENCY = histogram("trivia_answer_seconds", "Time between asking a player for an answer and receiving it");
+
+    // - Spectators -
+    public static final Gauge SPECTATORS = gauge("trivia_spectators", "Clients watching a game");
+    public static final Counter SPECTATORS_DROPPED = counter("trivia_spectators_dropped_total", "Spectators dropped because their connection fell behind or closed");
+    public static final Histogram SPECTATOR_FANOUT = histogram("trivia_spectator_fanout_seconds", "Time to queue one game event for all its spectators");
+
+    // - User database -
+    public static final Histogram SAVE_USERS = histogram("trivia_save_users_seconds", "Duration of writing the user database file");
+
+    private interface Metric {
+        String help();
+        void writeText(String name, StringBuilder out);
+        void addAttributes(String name, List<MBeanAttributeInfo> attributes);
+        // Value of the MBean attribute, or null if it isn't one of this metric's attributes
+        Object attribute(String name, String attribute);
+    }
+
+    // Value that only goes up
+    public static final class Counter implements Metric {
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String help) {
+            this.help = help;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        public String help() {
+            return help;
+        }
+
+        public void writeText(String name, StringBuilder out) {
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+
+        public void addAttributes(String name, List<MBeanAttributeInfo> attributes) {
+            attributes.add(new MBeanAttributeInfo(name, "long", help, true, false, false));
+        }
+
+        public Object attribute(String name, String attribute) {
+            return attribute.equals(name) ? get() : null;
+        }
+    }
+
+    // Value that goes up and down, set directly or read from a supplier
+    public static final class Gauge implements Metric {
+        private final String help;
+        private final AtomicLong value = new AtomicLong();
+        private volatile LongSupplier supplier;
+
+        private Gauge(String help) {
+            this.help = help;
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void decrement() {
+            value.decrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public void set(long newValue) {
+            value.set(newValue);
+        }
+
+        // Reads the value from 'supplier' instead, when the metrics are collected
+        public void setSupplier(LongSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        public long get() {
+            LongSupplier current = supplier;
+            return current != null ? current.getAsLong() : value.get();
+        }
+
+        public String help() {
+            return help;
+        }
+
+        public void writeText(String name, StringBuilder out) {
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+
+        public void addAttributes(String name, List<MBeanAttributeInfo> attributes) {
+            attributes.add(new MBeanAttributeInfo(name, "long", help, true, false, false));
+        }
+
+        public Object attribute(String name, String attribute) {
+            return attribute.equals(name) ? get() : null;
+        }
+    }
+
+    // Latency histogram with power of two buckets in microseconds (1 us up to ~18 minutes)
+    // Quantiles are reported as the upper bound of the bucket they fall in (at most the max)
+    public static final class Histogram implements Metric {
+        private static final int BUCKETS = 31;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+        private static final String[] QUANTILE_SUFFIXES = {"_p50", "_p90", "_p99"};
+
+        private final String help;
+        // bucket i counts values in [2^(i-1), 2^i) microseconds
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Histogram(String help) {
+            this.help = help;
+        }
+
+        // Records a duration measured with System.nanoTime()
+        public void recordNanos(long nanos) {
+            if (nanos < 0) nanos = 0;
+            long micros = nanos / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            sumNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        // Records the time elapsed since 'startNanos' (a System.nanoTime() value)
+        public void recordSince(long startNanos) {
+            recordNanos(System.nanoTime() - startNanos);
+        }
+
+        public void recordMillis(long millis) {
+            recordNanos(millis * 1_000_000);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        // Value (in seconds) below which 'quantile' of the records are
+        public double quantile(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) return 0;
+
+            long target = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= target) return Math.min((1L << i) / 1e6, maxNanos.get() / 1e9);
+            }
+            return maxNanos.get() / 1e9;
+        }
+
+        public String help() {
+            return help;
+        }
+
+        public void writeText(String name, StringBuilder out) {
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (double q : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(q).append("\"} ").append(quantile(q)).append('\n');
+            }
+            out.append(name).append("_max ").append(maxNanos.get() / 1e9).append('\n');
+            out.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count ").append(count()).append('\n');
+        }
+
+        public void addAttributes(String name, List<MBeanAttributeInfo> attributes) {
+            attributes.add(new MBeanAttributeInfo(name + "_count", "long", help, true, false, false));
+            attributes.add(new MBeanAttributeInfo(name + "_max", "double", help, true, false, false));
+            for (String suffix : QUANTILE_SUFFIXES) {
+                attributes.add(new MBeanAttributeInfo(name + suffix, "double", help, true, false, false));
+            }
+        }
+
+        public Object attribute(String name, String attribute) {
+            if (attribute.equals(name + "_count")) return count();
+            if (attribute.equals(name + "_max")) return maxNanos.get() / 1e9;
+            for (int i = 0; i < QUANTILE_SUFFIXES.length; i++) {
+                if (attribute.equals(name + QUANTILE_SUFFIXES[i])) return quantile(QUANTILES[i]);
+            }
+            return null;
+        }
+    }
+
+    public static Counter counter(String name, String help) {
+        return register(name, new Counter(help));
+    }
+
+    public static Gauge gauge(String name, String help) {
+        return register(name, new Gauge(help));
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return register(name, new Histogram(help));
+    }
+
+    private static <T extends Metric> T register(String name, T metric) {
+        if (registry.putIfAbsent(name, metric) != null) {
+            throw new IllegalArgumentException("Metric already registered: " + name);
+        }
+        return metric;
+    }
+
+    // Every metric in a plain text format (Prometheus style)
+    public static String toText() {
+        StringBuilder out = new StringBuilder();
+        registry.forEach((name, metric) -> {
+            out.append("# HELP ").append(name).append(' ').append(metric.help()).append('\n');
+            metric.writeText(name, out);
+        });
+        return out.toString();
+    }
+
+    // Registers the metrics as the MBean "trivia:type=Metrics"
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("trivia:type=Metrics"));
+        } catch (JMException e) {
+            Log.warn("[METRICS] Failed to register MBean: %s", e.getMessage());
+        }
+    }
+
+    // Serves the metrics at http://localhost:<port>/metrics
+    // and the lock contention report (see InstrumentedLock) at http://localhost:<port>/locks
+    public static HttpServer startHttpServer(int port) throws IOException {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> sendText(exchange, toText()));
+        httpServer.createContext("/locks", exchange -> sendText(exchange, InstrumentedLock.report()));
+        httpServer.start();
+        return httpServer;
+    }
+
+    private static void sendText(HttpExchange exchange, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    // Read only MBean with one attribute per metric value
+    private static final class MetricsMBean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Map.Entry<String, Metric> entry : registry.entrySet()) {
+                if (attribute.startsWith(entry.getKey())) {
+                    Object value = entry.getValue().attribute(entry.getKey(), attribute);
+                    if (value != null) return value;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only");
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Unknown attributes are left out
+                }
+            }
+            return list;
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        // The MBean has no operations
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            registry.forEach((name, metric) -> metric.addAttributes(name, attributes));
+            return new MBeanInfo(Metrics.class.getName(), "Trivia server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+// Server side state of a connected player
+// Only what the server needs: the connection, who he is, his rank and score, and the queue and
+// liveness timestamps. It is created for every connection and kept while the player waits in the
+// queue, so it must stay small (see SessionFootprint in the benchmarks module for its budget)
+public class PlayerSession {
+    private final Connection connection;
+    private String username;
+    private int rank;
+    private int score;
+    // Times in milliseconds, from the server's clock
+    private long lastResponseTime;
+    private long queueJoinTime;
+    // Last queue position sent to this player, 0 if none
+    private volatile int notifiedQueuePosition;
+    // Queue he joined, he goes back to it when he requeues
+    private GameQueue queue;
+    // Per-core shard of the server he belongs to (0 without shards)
+    private int shard;
+    // Node he logged in on, when he only came here with a ticket to play a coordinator's match
+    // (null otherwise). His session there ends with the match
+    private String homeNode;
+
+    public PlayerSession(Connection connection) {
+        this.connection = connection;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public void setRank(int rank) {
+        this.rank = rank;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    // Increments the player's score by 1
+    public void incrementScore() {
+        score++;
+    }
+
+    // Updates lastResponseTime to 'now'
+    public void setLastResponseTime(long now) {
+        this.lastResponseTime = now;
+    }
+
+    public long getLastResponseTime() {
+        return lastResponseTime;
+    }
+
+    // Updates queueJoinTime to 'now'
+    public void setQueueJoinTime(long now) {
+        this.queueJoinTime = now;
+    }
+
+    public long getQueueJoinTime() {
+        return queueJoinTime;
+    }
+
+    public GameQueue getQueue() {
+        return queue;
+    }
+
+    public void setQueue(GameQueue queue) {
+        this.queue = queue;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    public String getHomeNode() {
+        return homeNode;
+    }
+
+    public void setHomeNode(String homeNode) {
+        this.homeNode = homeNode;
+    }
+
+    // True if he came from another node with a ticket (see homeNode)
+    public boolean isGuest() {
+        return homeNode != null;
+    }
+
+    public int getNotifiedQueuePosition() {
+        return notifiedQueuePosition;
+    }
+
+    public void setNotifiedQueuePosition(int notifiedQueuePosition) {
+        this.notifiedQueuePosition = notifiedQueuePosition;
+    }
+}
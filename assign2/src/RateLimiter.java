@@ -0,0 +1,40 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Token bucket: lets 'rate' permits per second through on average, and up to 'burst' at once after a quiet time
+// acquire() waits for the next permit, so the callers are spaced out instead of turned away
+public class RateLimiter {
+    private final long nanosPerPermit;
+    private final long burstNanos;
+    // Time when the next permit is free, a time in the past means saved up permits (at most 'burst')
+    private long nextFree;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public RateLimiter(double rate, int burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid rate limit: " + rate + "/s, burst " + burst);
+        }
+        this.nanosPerPermit = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.burstNanos = nanosPerPermit * burst;
+        this.nextFree = System.nanoTime() - burstNanos + nanosPerPermit;
+    }
+
+    // Waits for a permit, returns how long it waited (in nanoseconds)
+    public long acquire() throws InterruptedException {
+        long wait;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            nextFree = Math.max(nextFree, now - burstNanos + nanosPerPermit);
+            wait = Math.max(0, nextFree - now);
+            nextFree += nanosPerPermit;
+        } finally {
+            lock.unlock();
+        }
+
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return wait;
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.Lock;
+
+// Applies rank changes from finished games in the background
+// Games publish their results into a bounded queue and return right away. The rating thread takes
+// them in batches, adds up the changes of each user and saves the user database once per batch
+// stop() applies what is still queued, so a shutdown doesn't lose any change
+public class RatingUpdater {
+    // Rank change of one user after a game
+    public record RatingEvent(String username, int rankDelta) {}
+
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final int MAX_BATCH = 512;
+    // Queued by stop(), the rating thread ends after applying the changes before it
+    private static final RatingEvent STOP = new RatingEvent(null, 0);
+    // Time (in milliseconds) stop() waits for the rating thread
+    private static final int STOP_TIMEOUT = 5000;
+
+    private final BlockingQueue<RatingEvent> events = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final UserDatabase userDatabase;
+    private final Lock userDatabase_lock;
+    private Thread thread;
+    // Set by stop(), changes published after it are applied by the caller
+    private volatile boolean stopped;
+
+    public RatingUpdater(UserDatabase userDatabase, Lock userDatabase_lock) {
+        this.userDatabase = userDatabase;
+        this.userDatabase_lock = userDatabase_lock;
+    }
+
+    public void start() {
+        thread = Thread.ofPlatform().name("rating-updater").start(this::run);
+    }
+
+    // Stops the rating thread once it applied every change queued before, then applies the ones
+    // that were published meanwhile (a game that ended during the shutdown)
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            try {
+                events.put(STOP);
+                thread.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<RatingEvent> remaining = new ArrayList<>();
+        events.drainTo(remaining);
+        remaining.removeIf(event -> event == STOP);
+        if (!remaining.isEmpty()) apply(remaining);
+    }
+
+    // Publishes a user's rank change
+    // If the queue is full (or the updater stopped) the change is applied right away by the caller,
+    // so no result is lost
+    public void publish(String username, int rankDelta) {
+        RatingEvent event = new RatingEvent(username, rankDelta);
+        if (stopped) {
+            apply(List.of(event));
+        } else if (!events.offer(event)) {
+            Log.warn("[RATING] Update queue is full, applying update synchronously");
+            apply(List.of(event));
+        }
+    }
+
+    private void run() {
+        List<RatingEvent> batch = new ArrayList<>(MAX_BATCH);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(events.take());
+                events.drainTo(batch, MAX_BATCH - 1);
+                stopping = batch.removeIf(event -> event == STOP);
+                if (!batch.isEmpty()) apply(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                Log.error("[RATING] %s", e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // Merges the changes of each user and applies them with a single save
+    private void apply(List<RatingEvent> batch) {
+        Map<String, Integer> rankDeltas = new HashMap<>();
+        for (RatingEvent event : batch) {
+            rankDeltas.merge(event.username(), event.rankDelta(), Integer::sum);
+        }
+
+        userDatabase_lock.lock();
+        try {
+            userDatabase.incrementRanks(rankDeltas);
+        } catch (IOException e) {
+            Log.error("[RATING] Failed to save rank updates: %s", e.getMessage());
+        } finally {
+            userDatabase_lock.unlock();
+        }
+    }
+}
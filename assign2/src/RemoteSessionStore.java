@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// SessionStore kept by a SessionStoreServer, shared by several game servers
+// Requests of every thread go through one connection: a sender thread writes all the requests
+// waiting at that moment in one batch, and the answers come back in the same order. Writes don't
+// wait for the store, reads wait for their answer (at most ANSWER_TIMEOUT)
+// Requests of one server are applied in the order they were made, so a reconnecting player
+// always finds the position and logout saved before
+//
+// Every connection starts with the store's secret (STORE_AUTH). The store logs out the players of a
+// connection that ends, so after a reconnection the server claims the logins of its players again
+public class RemoteSessionStore implements SessionStore {
+    // Time (in milliseconds) a read waits for its answer
+    private static final int ANSWER_TIMEOUT = 2000;
+    // Most requests written at once
+    private static final int MAX_BATCH = 256;
+
+    // A request and its answer, null for requests without one
+    private record Request(String message, CompletableFuture<String> answer) {}
+
+    // A connection to the store and the answers expected on it, in the order their requests were sent
+    private record Link(SocketConnection connection, Queue<CompletableFuture<String>> expectedAnswers) {}
+
+    private final String host;
+    private final int port;
+    private final String secret;
+    // Users this server logged in and hasn't logged out, claimed again on a new connection
+    private final Set<String> loggedIn = ConcurrentHashMap.newKeySet();
+    // Requests waiting to be sent
+    private final BlockingQueue<Request> outbox = new LinkedBlockingQueue<>();
+    // Only used by the sender thread
+    private Link link;
+    private final Thread sender;
+
+    public RemoteSessionStore(String host, int port, String secret) {
+        this.host = host;
+        this.port = port;
+        this.secret = secret;
+        this.sender = Thread.ofPlatform().name("session-store-sender").daemon().start(this::sendRequests);
+    }
+
+    public void putToken(String tokenHash, String username) {
+        send(String.join(" ", Communication.STORE_TOKEN_PUT, tokenHash, username));
+    }
+
+    public String getUsername(String tokenHash) throws IOException {
+        String answer = ask(Communication.STORE_TOKEN_GET + " " + tokenHash);
+        return answer.equals(Communication.STORE_NONE) ? null : answer;
+    }
+
+    public boolean login(String username) throws IOException {
+        boolean loggedInNow = ask(Communication.STORE_LOGIN + " " + username).equals("1");
+        if (loggedInNow) loggedIn.add(username);
+        return loggedInNow;
+    }
+
+    public void logout(String username) {
+        loggedIn.remove(username);
+        send(Communication.STORE_LOGOUT + " " + username);
+    }
+
+    public void putReconnectPosition(String username, Server.ReconnectPosition position) {
+        send(String.join(" ", Communication.STORE_POSITION_PUT, username, position.queue(),
+                String.valueOf(position.shard()), String.valueOf(position.position()),
+                String.valueOf(position.queueJoinTime())));
+    }
+
+    public Server.ReconnectPosition getReconnectPosition(String username) throws IOException {
+        String answer = ask(Communication.STORE_POSITION_GET + " " + username);
+        if (answer.equals(Communication.STORE_NONE)) return null;
+
+        String[] parts = answer.split(" ");
+        return new Server.ReconnectPosition(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                Long.parseLong(parts[3]));
+    }
+
+    // Sends the requests still waiting (at most ANSWER_TIMEOUT) and closes the connection
+    public void close() {
+        // The sender stops after the batch with this request
+        outbox.offer(new Request(null, null));
+        try {
+            sender.join(ANSWER_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(String message) {
+        outbox.offer(new Request(message, null));
+    }
+
+    // Sends a request and waits for its answer
+    private String ask(String message) throws IOException {
+        CompletableFuture<String> answer = new CompletableFuture<>();
+        outbox.offer(new Request(message, answer));
+        try {
+            return answer.get(ANSWER_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException("Session store unavailable: " + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            throw new IOException("Session store didn't answer in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the session store");
+        }
+    }
+
+    // Writes the waiting requests in batches, (re)connecting when needed
+    private void sendRequests() {
+        List<Request> batch = new ArrayList<>(MAX_BATCH);
+        boolean closed = false;
+        while (!closed) {
+            try {
+                batch.add(outbox.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            outbox.drainTo(batch, MAX_BATCH - 1);
+            closed = batch.removeIf(request -> request.message() == null);
+
+            if (!batch.isEmpty()) {
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    Log.warn("[STORE] Failed to send %d requests to the session store: %s", batch.size(), e.getMessage());
+                    disconnect(e);
+                    for (Request request : batch) {
+                        if (request.answer() != null) request.answer().completeExceptionally(e);
+                    }
+                }
+            }
+            batch.clear();
+        }
+
+        disconnect(new IOException("Session store closed"));
+    }
+
+    private void writeBatch(List<Request> batch) throws IOException {
+        StringBuilder messages = new StringBuilder();
+        if (link == null || link.connection().isClosed()) {
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            Link current = new Link(new SocketConnection(socket), new ConcurrentLinkedQueue<>());
+            link = current;
+            Thread.ofPlatform().name("session-store-reader").daemon().start(() -> readAnswers(current));
+            Log.info("[STORE] Connected to the session store at %s:%d", host, port);
+            claimLogins(messages);
+        }
+
+        for (Request request : batch) {
+            if (!messages.isEmpty()) messages.append('\n');
+            messages.append(request.message());
+        }
+        // Expected before writing, the answers may arrive before write returns
+        for (Request request : batch) {
+            if (request.answer() != null) link.expectedAnswers().add(request.answer());
+        }
+        link.connection().write(messages.toString());
+    }
+
+    // Starts a new connection: the secret, then the logins of this server's players, which the store
+    // released when the previous connection ended
+    private void claimLogins(StringBuilder messages) {
+        messages.append(Communication.STORE_AUTH).append(' ').append(secret);
+        for (String username : loggedIn) {
+            messages.append('\n').append(Communication.STORE_LOGIN).append(' ').append(username);
+            CompletableFuture<String> answer = new CompletableFuture<>();
+            answer.thenAccept(result -> {
+                if (!result.equals("1")) Log.warn("[STORE] %s logged in on another server while the store was unreachable", username);
+            });
+            link.expectedAnswers().add(answer);
+        }
+    }
+
+    // Completes the expected answers in order, until the connection ends
+    private void readAnswers(Link current) {
+        IOException failure = new IOException("Connection to the session store closed");
+        try {
+            String answer;
+            while ((answer = current.connection().read()) != null) {
+                CompletableFuture<String> expected = current.expectedAnswers().poll();
+                if (expected != null) expected.complete(answer);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        fail(current, failure);
+    }
+
+    // Drops the connection, the next batch opens a new one
+    private void disconnect(IOException cause) {
+        if (link == null) return;
+        fail(link, cause);
+        link = null;
+    }
+
+    // Closes a connection and fails the answers still expected on it
+    private static void fail(Link current, IOException cause) {
+        try {
+            current.connection().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        CompletableFuture<String> expected;
+        while ((expected = current.expectedAnswers().poll()) != null) {
+            expected.completeExceptionally(cause);
+        }
+    }
+}
@@ -1,56 +1,195 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 public class Server {
     private final ExecutorService gameThreadPool;
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // Source of the time for queue and matchmaking decisions (simulations use a SimulatedClock)
+    private final Clock clock;
 
-    // General Info
-    private final int PLAYERS_PER_GAME = 2;
+    // Named queues {name : queue of each shard}, in the order they are offered to clients
+    // They share the user database, the heartbeat and the executors of the Server
+    // Without per-core shards every name has a single queue, on its own EventLoop
+    private final Map<String, GameQueue[]> queues = new LinkedHashMap<>();
+    private final ExecutorService matchmakingThreadPool;
 
-    // Client Queue
-    private final List<Client> clientQueue;
-    private final ReentrantLock clientQueue_lock = new ReentrantLock();
+    // - Per-core shards (optional, ServerConfig.getShards()) -
+    // Every shard is an EventLoop that owns its own queue of each name, and the games formed there.
+    // Connections are given to the shards in turn, and a player stays in his shard
+    private final int shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    // False when the restart snapshot is turned off (ServerConfig.usesSnapshots())
+    private final boolean snapshots;
 
     // Game ID
-    private int gameId;
-    private final ReentrantLock gameId_lock = new ReentrantLock();
+    private final AtomicInteger gameId = new AtomicInteger(1);
+
+    // - Spectators -
+    // {game id : game} of the games being played, the ones that can be watched
+    private final Map<Integer, Game> runningGames = new ConcurrentHashMap<>();
+    // Sends the events of every game to its spectators (see Spectators)
+    private final EventLoop spectatorLoop = new EventLoop("spectators");
+    // Amount of games offered to a spectator
+    private static final int SPECTATE_LIST_MAX = 20;
+    // Takes back the spectators whose game ended, null without one (see setAcceptor)
+    private volatile ConnectionAcceptor acceptor;
+
+    // - Match coordinator (optional, ServerConfig.getCoordinator()) -
+    // While the link is up the coordinator matches the players of every node and this Server
+    // hosts the matches it is given; null to always match locally
+    private final CoordinatorLink coordinatorLink;
+    private final String nodeId;
+    // {ticket : match} of the coordinator's matches hosted here that are waiting for their players
+    private final Map<String, HostedMatch> hostedMatches = new ConcurrentHashMap<>();
+    // Time (in milliseconds) the players of a hosted match have to join it
+    private static final int HOSTED_MATCH_TIMEOUT = 10000;
+    // Time (in milliseconds) a ticket may arrive before the match it belongs to
+    private static final int JOIN_MATCH_WAIT = 2000;
+
+    // Match formed by the coordinator that this Server hosts
+    // Its players either were queued here or connect with their ticket (CLIENT_JOIN_MATCH)
+    // It only starts once all of them joined, until then it is guarded by its own monitor
+    private static class HostedMatch {
+        final int id;
+        final String queue;
+        // {ticket : username}, {ticket : rank} and {ticket : node he is connected to} of the players that haven't joined
+        final Map<String, String> usernames = new HashMap<>();
+        final Map<String, Integer> ranks = new HashMap<>();
+        final Map<String, String> homes = new HashMap<>();
+        final List<PlayerSession> joined = new ArrayList<>();
+        boolean cancelled;
+
+        HostedMatch(int id, String queue) {
+            this.id = id;
+            this.queue = queue;
+        }
+    }
 
     // Database
     private final UserDatabase userDatabase;
-    private final ReentrantLock userDatabase_lock = new ReentrantLock();
-
-    // Game Mode : 0 -> Simple , 1 -> Ranked
-    private final int gameMode;
-    private static final int SIMPLE = 0;
-    private static final int RANKED = 1;
+    private final Lock userDatabase_lock = InstrumentedLock.create("userDatabase_lock");
+    // Rank index of the users, it has its own lock so it is read without userDatabase_lock
+    private final Leaderboard leaderboard;
+    // Applies the rank changes of finished games in the background
+    private final RatingUpdater ratingUpdater;
+    // Amount of players sent in the top of the leaderboard and around the asking player
+    private static final int LEADERBOARD_TOP = 10;
+    private static final int LEADERBOARD_AROUND = 3;
+
+    // Time (in milliseconds) a queued client has to answer a PING
+    private static final int PING_TIMEOUT = 2000;
+
+    // Game Modes of the queues
+    static final int SIMPLE = 0;
+    static final int RANKED = 1;
 
     // - Ranked Mode -
-    // Maximum difference between player's Ranks
-    private int MATCHMAKING_MAX_DIFF = 100;
-    private final int MATCHMAKING_RELAX = 100;
-
-    // {username : position}
-    // Stores the client's queue position when he disconnects
-    // This shares the lock with the userDatabase
-    private final Map<String, Integer> reconnectPosition;
-
-    public Server(int gameMode) throws IOException{
-        this.clientQueue = new ArrayList<>();
-        this.userDatabase = new UserDatabase();
-        this.gameMode = gameMode;
+    // Each player has a rank window that grows while he waits
+    // Two players can be matched when their windows overlap
+    // Window of a player that just joined (two new players can be at most 100 apart)
+    static final int MATCHMAKING_BASE_WINDOW = 50;
+    // Amount added to a player's window every MATCHMAKING_RELAX_INTERVAL seconds of waiting
+    static final int MATCHMAKING_RELAX = 50;
+    static final int MATCHMAKING_RELAX_INTERVAL = 30;
+    // Largest window a player can reach
+    static final int MATCHMAKING_MAX_WINDOW = 1000;
+
+    // Ranked players are split in MATCHMAKING_SHARDS shards by rank, in bands of MATCHMAKING_SHARD_BAND until
+    // ShardedMatchmaker moves the bands to the ranks of the waiting players
+    private static final int MATCHMAKING_SHARDS = Runtime.getRuntime().availableProcessors();
+    private static final int MATCHMAKING_SHARD_BAND = 250;
+
+    // Interval (in milliseconds) of the batch matchmaker, which pairs everyone it can at once
+    static final int MATCHMAKING_TICK_INTERVAL = 1000;
+
+    // Queue, shard and position of a Client when he disconnected, and when he had joined that queue
+    record ReconnectPosition(String queue, int shard, int position, long queueJoinTime) {}
+
+    // Session tokens, logged in users and the queue positions of the Clients that disconnected
+    // In memory by default, or a SessionStoreServer shared with other servers (ServerConfig.getSessionStore())
+    private final SessionStore sessionStore;
+
+    // - Restart snapshot (see shutdown) -
+    private static final String SNAPSHOT_FILE = "src/database/snapshot.bin";
+    // "TRV2", first bytes of a snapshot file
+    private static final int SNAPSHOT_MAGIC = 0x54525632;
+    // Snapshots older than this (in milliseconds) are ignored, their queue positions are meaningless
+    private static final long SNAPSHOT_MAX_AGE = TimeUnit.MINUTES.toMillis(15);
+
+    public Server(int gameMode) throws IOException {
+        this(gameMode, Clock.systemUTC());
+    }
+
+    public Server(int gameMode, Clock clock) throws IOException {
+        this(ServerConfig.singleQueue(gameMode), clock);
+    }
+
+    public Server(ServerConfig config, Clock clock) throws IOException{
+        this.clock = clock;
+        this.shards = Math.max(1, config.getShards());
+        this.matchmakingThreadPool = Executors.newFixedThreadPool(MATCHMAKING_SHARDS);
+        this.userDatabase = config.getUsersFile() != null ? new UserDatabase(config.getUsersFile()) : new UserDatabase();
+        this.leaderboard = userDatabase.getLeaderboard();
+        this.ratingUpdater = new RatingUpdater(userDatabase, userDatabase_lock);
         this.gameThreadPool = Executors.newVirtualThreadPerTaskExecutor();
-        this.gameId = 1;
 
+        this.sessionStore = config.getSessionStore() != null
+                ? new RemoteSessionStore(config.getSessionStoreHost(), config.getSessionStorePort(), config.getSessionStoreSecret())
+                : new InMemorySessionStore();
+
+        // The tokens given before a restart stay valid if the sessions come back from the snapshot
+        // (or are kept by a shared session store)
+        this.snapshots = config.usesSnapshots();
+        if (snapshots && sessionStore instanceof InMemorySessionStore memoryStore && !restoreSnapshot(memoryStore)) {
+            deleteTokenFiles();
+        }
+
+        createQueues(config);
+
+        this.nodeId = config.getNodeId();
+        if (config.getCoordinator() != null) {
+            this.coordinatorLink = new CoordinatorLink(config.getCoordinatorHost(), config.getCoordinatorPort(), config.getCoordinatorSecret(), nodeId,
+                    config.getAdvertisedHost(), config.getPort(), config.getCapacity(), this);
+            coordinatorLink.start();
+            scheduler.scheduleAtFixedRate(() -> coordinatorLink.reportLoad(Metrics.GAMES_IN_FLIGHT.get()), 1, 1, TimeUnit.SECONDS);
+        } else {
+            this.coordinatorLink = null;
+        }
+
+        Metrics.QUEUE_LENGTH.setSupplier(() -> {
+            long length = 0;
+            for (GameQueue[] shardQueues : queues.values()) {
+                for (GameQueue queue : shardQueues) {
+                    length += queue.size();
+                }
+            }
+            return length;
+        });
+
+        // Schedulers
+        schedulePing();
+        scheduleNotifyQueuePos();
+        scheduleLockReport();
+
+        ratingUpdater.start();
+    }
+
+    private static void deleteTokenFiles() throws IOException {
         File directory = new File("src/database/tokens/");
         if (directory.exists()) {
 
@@ -66,65 +205,239 @@ public class Server {
                 }
             }
         }
+    }
 
-        // Schedulers
-        schedulePing();
-        scheduleNotifyQueuePos();
-        if (this.gameMode == RANKED) {
-            scheduleMatchmakingRelax();
+    // Saves what the players need to come back after a restart
+    // Every queued Client gets his position as a reconnect position, like a Client that disconnected,
+    // so after the restart he reconnects with his token instead of logging in again.
+    // With the in-memory store, the tokens and positions are written to SNAPSHOT_FILE for the next start
+    // The rank changes still waiting in the RatingUpdater are saved to the user database first
+    public void shutdown() {
+        ratingUpdater.stop();
+
+        for (Map.Entry<String, GameQueue[]> entry : queues.entrySet()) {
+            for (GameQueue queue : entry.getValue()) {
+                List<PlayerSession> queued;
+                try {
+                    queued = queue.queuedClients().get(1, TimeUnit.SECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    Log.warn("[SNAPSHOT] Couldn't read the %s Queue of shard %d", entry.getKey(), queue.getShard());
+                    continue;
+                }
+                for (int i = 0; i < queued.size(); i++) {
+                    PlayerSession client = queued.get(i);
+                    sessionStore.putReconnectPosition(client.getUsername(), new ReconnectPosition(entry.getKey(), queue.getShard(), i + 1,
+                            client.getQueueJoinTime()));
+                    sessionStore.logout(client.getUsername());
+                }
+            }
         }
 
-        this.reconnectPosition = new HashMap<>();
+        if (snapshots && sessionStore instanceof InMemorySessionStore memoryStore) {
+            saveSnapshot(memoryStore);
+        }
+        try {
+            sessionStore.close();
+        } catch (IOException e) {
+            Log.warn("[SNAPSHOT] Failed to close the session store: %s", e.getMessage());
+        }
+    }
+
+    // Writes the snapshot to a temporary file and then replaces SNAPSHOT_FILE with it,
+    // so a crash while writing never leaves half a snapshot
+    private static void saveSnapshot(InMemorySessionStore store) {
+        Path snapshot = Path.of(SNAPSHOT_FILE);
+        Path temporary = Path.of(SNAPSHOT_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(System.currentTimeMillis());
+            store.writeTo(out);
+        } catch (IOException e) {
+            Log.error("[SNAPSHOT] Failed to save the snapshot: %s", e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Log.info("[SNAPSHOT] Saved sessions to %s (%d bytes)", SNAPSHOT_FILE, snapshot.toFile().length());
+        } catch (IOException e) {
+            Log.error("[SNAPSHOT] Failed to save the snapshot: %s", e.getMessage());
+        }
+    }
+
+    // Loads the snapshot of the last shutdown into the store, if there is a recent one
+    // It is deleted once read, a later crash must not bring back old sessions
+    // Returns true if the sessions were restored
+    private static boolean restoreSnapshot(InMemorySessionStore store) {
+        Path snapshot = Path.of(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) return false;
+
+        boolean restored = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                Log.warn("[SNAPSHOT] %s is not a snapshot, ignoring it", SNAPSHOT_FILE);
+            } else if (System.currentTimeMillis() - in.readLong() > SNAPSHOT_MAX_AGE) {
+                Log.info("[SNAPSHOT] Snapshot is too old, ignoring it");
+            } else {
+                store.readFrom(in);
+                restored = true;
+                Log.info("[SNAPSHOT] Restored sessions from %s", SNAPSHOT_FILE);
+            }
+        } catch (IOException e) {
+            Log.warn("[SNAPSHOT] Failed to read the snapshot: %s", e.getMessage());
+        }
+
+        try {
+            Files.delete(snapshot);
+        } catch (IOException e) {
+            Log.warn("[SNAPSHOT] Failed to delete the snapshot: %s", e.getMessage());
+        }
+        return restored;
+    }
+
+    // Creates the queues of the config
+    // Without shards each queue gets its own loop, and its ranked matchmaker uses every core.
+    // With shards each shard has one loop for all its queues, and ranked matchmaking stays in the shard
+    private void createQueues(ServerConfig config) {
+        EventLoop[] shardLoops = new EventLoop[config.getShards() > 0 ? shards : 0];
+        for (int i = 0; i < shardLoops.length; i++) {
+            shardLoops[i] = new EventLoop("shard-" + i);
+        }
+
+        for (ServerConfig.QueueConfig queueConfig : config.getQueues()) {
+            GameQueue[] shardQueues = new GameQueue[shards];
+            for (int i = 0; i < shards; i++) {
+                EventLoop loop = shardLoops.length > 0 ? shardLoops[i] : new EventLoop("matchmaker-" + queueConfig.name());
+                int rankShards = shardLoops.length > 0 ? 1 : MATCHMAKING_SHARDS;
+                shardQueues[i] = new GameQueue(queueConfig.name(), queueConfig.gameMode(), i, this, clock, loop,
+                        rankShards, MATCHMAKING_SHARD_BAND, matchmakingThreadPool);
+                if (i > 0) shardQueues[i].setHome(shardQueues[0]);
+            }
+            queues.put(queueConfig.name(), shardQueues);
+        }
+    }
+
+    // Queue named 'name' of the Client's shard, null if there is none
+    private GameQueue queueFor(String name, PlayerSession client) {
+        GameQueue[] shardQueues = queues.get(name);
+        return shardQueues != null ? shardQueues[client.getShard()] : null;
     }
 
     // Write message to client
-    public static void writeToClient(Socket clientSocket, String message) throws IOException {
-        OutputStream output = clientSocket.getOutputStream();
-        PrintWriter writer = new PrintWriter(output, true);
-        writer.println(message);
+    // Players' connections only queue it (see SocketConnection), so it doesn't wait for a slow client
+    public static void writeToClient(Connection connection, String message) throws IOException {
+        connection.write(message);
     }
 
     // Read message from client
-    public static String readFromClient(Socket clientSocket) throws IOException {
-        InputStream input = clientSocket.getInputStream();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-        return reader.readLine();
+    public static String readFromClient(Connection connection) throws IOException {
+        return connection.read();
     }
 
-    // Add a log in server's UI
+    // Reads a client's answer to a question or to REQUEUE_OR_QUIT
+    // A PONG there is the late answer of a ping sent while he was queued, so it is skipped
+    public static String readAnswer(Connection connection) throws IOException {
+        String answer;
+        do {
+            answer = connection.read();
+        } while (Communication.PONG.equals(answer));
+        return answer;
+    }
+
+    // Add a log in server's UI (asynchronous, see Log)
     public static void serverLog(String log) {
-        System.out.println(log);
+        Log.info(log);
     }
 
     // State machine to handle messages received from client
-    private void handleClient(Socket socket) throws IOException {
-        Client client = new Client(socket);
-        String clientAction = questionClient(client);
+    // The welcome menu is asked again for as long as a handler sends him back to it (registration,
+    // leaderboard, a spectate or join that failed), in a loop so his thread's stack doesn't grow
+    private void handleClient(Connection connection) throws IOException {
+        boolean backToMenu;
+        do {
+            PlayerSession client = new PlayerSession(connection);
+            client.setShard(Math.floorMod(nextShard.getAndIncrement(), shards));
+            String clientAction = questionClient(client);
+
+            if (clientAction == null || clientAction.isEmpty()) {
+                return;
+            }
 
-        if (clientAction == null || clientAction.isEmpty()) {
-            return;
-        }
+            String command = clientAction.split(" ")[0];
+            backToMenu = false;
 
-        String command = clientAction.split(" ")[0];
+            switch (command) {
+                case Communication.CLIENT_AUTH:
+                    Log.info("[AUTH] A Client is authenticating");
+                    handleClientAuthentication(client);
+                    break;
 
-        switch (command) {
-            case Communication.CLIENT_AUTH:
-                System.out.println("[AUTH] A Client is authenticating");
-                handleClientAuthentication(client);
-                break;
+                case Communication.CLIENT_RECONNECT:
+                    Log.info("[RECONNECT] A Client is reconnecting with token");
+                    handleClientReconnection(client);
+                    break;
 
-            case Communication.CLIENT_RECONNECT:
-                System.out.println("[RECONNECT] A Client is reconnecting with token");
-                handleClientReconnection(client);
-                break;
+                case Communication.CLIENT_REGISTER:
+                    Log.info("[AUTH] A Client is creating a new account");
+                    backToMenu = handleClientRegistration(client);
+                    break;
 
-            case Communication.CLIENT_REGISTER:
-                System.out.println("[AUTH] A Client is creating a new account");
-                handleClientRegistration(client);
-                break;
-        
-            default:
-                break;
+                case Communication.CLIENT_LEADERBOARD:
+                    backToMenu = handleClientLeaderboard(client);
+                    break;
+
+                case Communication.CLIENT_JOIN_MATCH:
+                    backToMenu = handleClientJoinMatch(client, clientAction);
+                    break;
+
+                case Communication.CLIENT_SPECTATE:
+                    backToMenu = handleClientSpectate(client);
+                    break;
+
+                default:
+                    break;
+            }
+        } while (backToMenu);
+    }
+
+    // Handles a new connection on its own virtual thread
+    // In-process harnesses call it with an InMemoryConnection
+    public void acceptConnection(Connection connection) {
+        acceptConnection(connection, () -> {});
+    }
+
+    // Same, 'handshakeDone' runs once the Client is past the login (queued, in a game or disconnected)
+    // ConnectionAcceptor calls it for every accepted socket
+    public void acceptConnection(Connection connection, Runnable handshakeDone) {
+        Thread.startVirtualThread(() -> {
+            try {
+                handleClient(connection);
+            } catch (IOException e) {
+                Log.warn("[CONNECTION] Error communicating with Client: %s", e.getMessage());
+                try {
+                    connection.close();
+                } catch (IOException closeError) {
+                    // Already closed
+                }
+            } finally {
+                handshakeDone.run();
+            }
+        });
+    }
+
+    // Set by ConnectionAcceptor.start, null when the connections are given straight to acceptConnection
+    public void setAcceptor(ConnectionAcceptor acceptor) {
+        this.acceptor = acceptor;
+    }
+
+    // Sends a connection back to the welcome menu, on a thread of its own
+    // A socket goes through the acceptor again, so it takes a pre-auth slot and gets the handshake timeout
+    private void readmitConnection(Connection connection) {
+        ConnectionAcceptor acceptor = this.acceptor;
+        if (acceptor != null && connection instanceof SocketConnection socketConnection) {
+            acceptor.readmit(socketConnection, this);
+        } else {
+            acceptConnection(connection);
         }
     }
 
@@ -132,81 +445,189 @@ public class Server {
     // 1. Log In
     // 2. Reconnect with Token
     // 3. Register
-    private String questionClient(Client client) throws IOException{
-        writeToClient(client.getSocket(), Communication.WELCOME);
-        return readFromClient(client.getSocket());
+    // 4. Leaderboard
+    // 5. Spectate
+    private String questionClient(PlayerSession client) throws IOException{
+        writeToClient(client.getConnection(), Communication.WELCOME);
+        return readFromClient(client.getConnection());
     }
 
     // Handles client authentication
-    private void handleClientAuthentication(Client client) throws IOException{
+    private void handleClientAuthentication(PlayerSession client) throws IOException{
         if (authenticateClient(client)) {
-            System.out.println("[AUTH] " + client.getUsername() + " authenticated successfully");
-            writeToClient(client.getSocket(), Communication.AUTH_SUCCESS);
+            Log.info("[AUTH] %s authenticated successfully", client.getUsername());
+            writeToClient(client.getConnection(), Communication.AUTH_SUCCESS);
             assignToken(client);
-            addClientToQueuePos(client, -1);
+            GameQueue queue = chooseQueue(client);
+            if (queue == null) {
+                logoutUser(client);
+                client.getConnection().close();
+                return;
+            }
+            client.getConnection().endHandshake();
+            queue.add(client, -1);
         } else {
-            System.out.println("[AUTH] " + (client.getUsername() != null ? client.getUsername() : "Client") + " failed authentication");
-            writeToClient(client.getSocket(), Communication.AUTH_FAIL);
-            client.getSocket().close();
+            Log.info("[AUTH] %s failed authentication", client.getUsername() != null ? client.getUsername() : "Client");
+            writeToClient(client.getConnection(), Communication.AUTH_FAIL);
+            client.getConnection().closeAfterFlush();
         }
     }
 
     // Verifies if client is valid and acts accordingly
-    private boolean authenticateClient(Client client) throws IOException {
-        writeToClient(client.getSocket(), Communication.AUTH_USERNAME);
-        String username = readFromClient(client.getSocket());
+    private boolean authenticateClient(PlayerSession client) throws IOException {
+        writeToClient(client.getConnection(), Communication.AUTH_USERNAME);
+        String username = readFromClient(client.getConnection());
         client.setUsername(username);
 
-        writeToClient(client.getSocket(), Communication.AUTH_PASSWORD);
-        String password = readFromClient(client.getSocket());
+        writeToClient(client.getConnection(), Communication.AUTH_PASSWORD);
+        String password = readFromClient(client.getConnection());
 
         boolean authSuccess;
 
+        ServerEvents.Authentication authEvent = new ServerEvents.Authentication();
+        authEvent.begin();
+        long authStart = System.nanoTime();
         userDatabase_lock.lock();
         try {
+            long bcryptStart = System.nanoTime();
             authSuccess = userDatabase.authenticate(username, password);
-
-            if (authSuccess && userDatabase.isUserLoggedIn(username)) {
-                writeToClient(client.getSocket(), Communication.AUTH_ALREADY_LOGGED_IN);
-                System.out.println("[AUTH] " + username + " is already logged in");
-                return false;
-            }
+            authEvent.bcryptNanos = System.nanoTime() - bcryptStart;
+            Metrics.BCRYPT_LATENCY.recordNanos(authEvent.bcryptNanos);
 
             // get the rank of current user
-            else if (authSuccess && !userDatabase.isUserLoggedIn(username)) {
-                int userRank = userDatabase.getUserRank(username);
-                client.setRank(userRank);
-                userDatabase.userLoggedIn(username);
+            if (authSuccess) {
+                client.setRank(userDatabase.getUserRank(username));
             }
         } finally {
             userDatabase_lock.unlock();
         }
 
+        try {
+            if (authSuccess && !sessionStore.login(username)) {
+                writeToClient(client.getConnection(), Communication.AUTH_ALREADY_LOGGED_IN);
+                Log.info("[AUTH] %s is already logged in", username);
+                return false;
+            }
+            authEvent.success = authSuccess;
+        } finally {
+            Metrics.AUTH_LATENCY.recordSince(authStart);
+            // The hash (an HMAC) is only computed when JFR records the event
+            authEvent.end();
+            if (authEvent.shouldCommit()) {
+                authEvent.usernameHash = ServerEvents.usernameHash(username);
+                authEvent.commit();
+            }
+        }
+
         return authSuccess;
     }
 
     // Handles client registration
-    private void handleClientRegistration(Client client) throws IOException {
+    // Returns true if he goes back to the welcome menu (he registered and can now log in)
+    private boolean handleClientRegistration(PlayerSession client) throws IOException {
         if (registerClient(client)) {
-            System.out.println("[REGISTRATION] " + client.getUsername() + " registered successfully");
-            writeToClient(client.getSocket(), Communication.REGISTER_SUCCESS);
-            handleClient(client.getSocket());
+            Log.info("[REGISTRATION] %s registered successfully", client.getUsername());
+            writeToClient(client.getConnection(), Communication.REGISTER_SUCCESS);
+            return true;
 
         } else {
-            writeToClient(client.getSocket(), Communication.REGISTER_FAIL);
-            System.out.println("[REGISTRATION] " + (client.getUsername() != null ? client.getUsername() : "Client") + " failed registration");
-            client.getSocket().close();
+            writeToClient(client.getConnection(), Communication.REGISTER_FAIL);
+            Log.info("[REGISTRATION] %s failed registration", client.getUsername() != null ? client.getUsername() : "Client");
+            client.getConnection().closeAfterFlush();
+            return false;
         }
     }
 
+    // Sends the leaderboard to the client and goes back to the welcome menu
+    // Top players first, then the position of the given username and the players around him
+    // Returns true if he goes back to the welcome menu (false if he left)
+    private boolean handleClientLeaderboard(PlayerSession client) throws IOException {
+        writeToClient(client.getConnection(), Communication.LEADERBOARD_USERNAME);
+        String username = readFromClient(client.getConnection());
+        if (username == null) {
+            client.getConnection().close();
+            return false;
+        }
+
+        writeToClient(client.getConnection(), "--- Top " + LEADERBOARD_TOP + " ---");
+        for (Leaderboard.Entry entry : leaderboard.getTop(LEADERBOARD_TOP)) {
+            writeToClient(client.getConnection(), formatLeaderboardEntry(entry));
+        }
+
+        if (!username.isEmpty() && leaderboard.getPosition(username) != -1) {
+            String position = String.format("--- %s is #%d (better than %.1f%% of players) ---",
+                    username, leaderboard.getPosition(username), leaderboard.getPercentile(username));
+            writeToClient(client.getConnection(), position);
+            for (Leaderboard.Entry entry : leaderboard.getAround(username, LEADERBOARD_AROUND)) {
+                writeToClient(client.getConnection(), formatLeaderboardEntry(entry));
+            }
+        }
+
+        writeToClient(client.getConnection(), Communication.LEADERBOARD_END);
+        return true;
+    }
+
+    // Lets the client watch a running game, he goes back to the welcome menu when it ends
+    // His connection is then only written by the game's Spectators, this thread is done with it
+    // Returns true if he goes back to the welcome menu right away (he chose no game, or it ended)
+    private boolean handleClientSpectate(PlayerSession client) throws IOException {
+        List<Game> games = new ArrayList<>(runningGames.values());
+        games.sort(Comparator.comparingInt((Game game) -> game.getSpectators().count()).reversed());
+        StringBuilder message = new StringBuilder(Communication.SPECTATE_GAMES);
+        for (int i = 0; i < games.size() && i < SPECTATE_LIST_MAX; i++) {
+            message.append(' ').append(games.get(i).getId());
+        }
+        writeToClient(client.getConnection(), message.toString());
+
+        String answer = readFromClient(client.getConnection());
+        if (answer == null) {
+            client.getConnection().close();
+            return false;
+        }
+        if (answer.isBlank()) {
+            return true;
+        }
+
+        Game game;
+        try {
+            game = runningGames.get(Integer.parseInt(answer.trim()));
+        } catch (NumberFormatException e) {
+            game = null;
+        }
+        if (game == null) {
+            writeToClient(client.getConnection(), Communication.SPECTATE_FAIL);
+            return true;
+        }
+
+        Log.debug("[SPECTATE] A Client is watching Game %d", game.getId());
+        Connection connection = client.getConnection();
+        game.getSpectators().subscribe(connection, game::describe).thenAccept(ended -> {
+            if (ended) {
+                // Back to the welcome menu, on a thread of his own
+                readmitConnection(connection);
+            } else {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        });
+        return false;
+    }
+
+    private static String formatLeaderboardEntry(Leaderboard.Entry entry) {
+        return String.format("%d. %s - %d", entry.position(), entry.username(), entry.rank());
+    }
+
     // Verifies if registration is valid and acts accordingly
-    private boolean registerClient(Client client) throws IOException {
-        writeToClient(client.getSocket(), Communication.REGISTER_USERNAME);
-        String username = readFromClient(client.getSocket());
+    private boolean registerClient(PlayerSession client) throws IOException {
+        writeToClient(client.getConnection(), Communication.REGISTER_USERNAME);
+        String username = readFromClient(client.getConnection());
         client.setUsername(username);
 
-        writeToClient(client.getSocket(), Communication.REGISTER_PASSWORD);
-        String password = readFromClient(client.getSocket());
+        writeToClient(client.getConnection(), Communication.REGISTER_PASSWORD);
+        String password = readFromClient(client.getConnection());
 
         if (username == null || password == null || username.isEmpty() || password.isEmpty()) {
             return false;
@@ -215,8 +636,7 @@ public class Server {
         userDatabase_lock.lock();
         try {
             userDatabase.createUser(username, password);
-            String log = String.format("[REGISTRATION] New account created -> %s:%s", username, password);
-            System.out.println(log);
+            Log.info("[REGISTRATION] New account created -> %s:%s", username, password);
 
         } catch (Exception e) {
             handleRegistrationError(client, e);
@@ -229,177 +649,100 @@ public class Server {
     }
 
     // Handles error when client is registering
-    private void handleRegistrationError(Client client, Exception e) {
+    private void handleRegistrationError(PlayerSession client, Exception e) {
         try {
-            writeToClient(client.getSocket(), Communication.REGISTER_FAIL);
+            writeToClient(client.getConnection(), Communication.REGISTER_FAIL);
         } catch (IOException e2) {
-            System.out.println("[REGISTRATION] Error communicating with Client: " + e.getMessage());
-        }
-        System.out.println("[REGISTRATION] Client failed registration: " + e.getMessage());
-    }
-
-    // Adds a Client to the clientQueue with specific pos
-    private void addClientToQueuePos(Client client, int queuePos) throws IOException{
-        clientQueue_lock.lock();
-        if (queuePos == -1) {
-            clientQueue.add(client);
-            notifyClientPosition(client, clientQueue.size());
-        }
-
-        else {
-            clientQueue.add(queuePos - 1, client);
-            notifyClientPosition(client, queuePos);
-        }
-
-        String log = String.format("[QUEUE] Client %s was added to the Queue (%d/%d)", client.getUsername(), clientQueue.size(), PLAYERS_PER_GAME);
-        System.out.println(log);
-        checkForNewGame();
-        clientQueue_lock.unlock();
-    }
-
-    // Checks if a new Game should start
-    private void checkForNewGame() throws IOException {
-        List<Client> playerList = null;
-        boolean startGame = false;
-    
-        clientQueue_lock.lock();
-        try {
-            if (clientQueue.size() >= PLAYERS_PER_GAME) {
-                switch (gameMode) {
-                    case SIMPLE:
-                        playerList = new ArrayList<>(clientQueue);
-                        clientQueue.clear();
-                        startGame = true;
-                        break;
-                    case RANKED:
-                        playerList = getPlayerListRanked();
-                        if (playerList != null) {
-                            removeClientsFromQueue(playerList);
-                            MATCHMAKING_MAX_DIFF = 100;
-                            startGame = true;
-                        }
-                        break;
-                }
-            }
-        } finally {
-            clientQueue_lock.unlock();
-        }
-    
-        if (startGame) {
-            startNewGame(playerList);
-        }
-    }
-
-    // Removes clientsToRemove from Queue
-    private void removeClientsFromQueue(List<Client> clientsToRemove) {
-        clientQueue_lock.lock();
-        try {
-            for (Client client : clientsToRemove) {
-                clientQueue.remove(client);
-            }
-        } finally {
-            clientQueue_lock.unlock();
+            Log.warn("[REGISTRATION] Error communicating with Client: %s", e.getMessage());
         }
+        Log.info("[REGISTRATION] Client failed registration: %s", e.getMessage());
     }
 
-    // Function that returns the list of players to start a ranked game with close rank
-    private List<Client> getPlayerListRanked() {
-        List<Client> playerList = new ArrayList<>();
-
-        clientQueue_lock.lock();
-        
-        for (int i1 = 0; i1 < clientQueue.size(); i1++) {
-            playerList.clear();
-            int rankFirst = clientQueue.get(i1).getRank();
-            playerList.add(clientQueue.get(i1));
-            for (int i2 = i1 + 1; i2 < clientQueue.size(); i2++) {
-                int rankSecond = clientQueue.get(i2).getRank();
+    // Starts one game for each player list, handing them all to the game executor at once
+    // Called by the matchmaker threads of the queues
+    void startNewGames(List<List<PlayerSession>> playerLists) {
+        List<Game> games = new ArrayList<>(playerLists.size());
 
-                if (Math.abs(rankFirst - rankSecond) <= MATCHMAKING_MAX_DIFF) {
-                    playerList.add(clientQueue.get(i2));
-                }
+        long now = clock.millis();
 
-                if (playerList.size() == PLAYERS_PER_GAME) {
-                    return playerList;
-                }
-            }
+        for (List<PlayerSession> playerList : playerLists) {
+            games.add(new Game(gameId.getAndIncrement(), new ArrayList<>(playerList), this, new Spectators(spectatorLoop)));
         }
 
-        clientQueue_lock.unlock();
-
-        return null;
-    }
-
-    // Starts a new game with players (Clients) in playerList
-    private void startNewGame(List<Client> playerList) {
-        gameId_lock.lock();
-        userDatabase_lock.lock();
-        try {
-            Game game = new Game(gameId++, new ArrayList<>(playerList), userDatabase, userDatabase_lock, this);
-
+        for (int i = 0; i < games.size(); i++) {
+            Game game = games.get(i);
+            recordMatchFormed(game.getId(), playerLists.get(i), now);
+            Metrics.GAMES_STARTED.increment();
+            Metrics.GAMES_IN_FLIGHT.increment();
+            runningGames.put(game.getId(), game);
             gameThreadPool.execute(() -> {
                 try {
                     game.startGame();
                 } catch (IOException e) {
-                    serverLog(e.getMessage());
+                    Log.error("[Game %d] %s", game.getId(), e.getMessage());
+                } finally {
+                    runningGames.remove(game.getId());
+                    game.stopSpectators();
+                    Metrics.GAMES_IN_FLIGHT.decrement();
                 }
             });
-            String log = String.format("[Game %d] Started Game", game.getId());
-            System.out.println(log);
-        } finally {
-            userDatabase_lock.unlock();
-            gameId_lock.unlock();
+            Log.info("[Game %d] Started Game", game.getId());
         }
     }
 
-    // Pings client
-    private boolean pingClient(Client client) throws IOException {
-        writeToClient(client.getSocket(), Communication.PING);
-
-        ExecutorService pingExecutor = Executors.newSingleThreadExecutor();
-        Future<Boolean> future = pingExecutor.submit(() -> {
-            try {
-                String response = readFromClient(client.getSocket());
-                if (response.equals(Communication.PONG)) {
-                    client.setLastResponseTime();
-                    return true;
-                }
-            } catch (IOException e) {
-                // Ignore, we'll handle the client removal below
+    // Records a JFR event for a new match
+    private static void recordMatchFormed(int gameId, List<PlayerSession> playerList, long now) {
+        ServerEvents.MatchFormed event = new ServerEvents.MatchFormed();
+        if (event.shouldCommit()) {
+            int minRank = Integer.MAX_VALUE;
+            int maxRank = Integer.MIN_VALUE;
+            long longestWait = 0;
+            for (PlayerSession player : playerList) {
+                minRank = Math.min(minRank, player.getRank());
+                maxRank = Math.max(maxRank, player.getRank());
+                longestWait = Math.max(longestWait, now - player.getQueueJoinTime());
             }
-            return false;
-        });
+            event.gameId = gameId;
+            event.rankDiff = maxRank - minRank;
+            event.waitMillis = longestWait;
+            event.queueSize = (int) Metrics.QUEUE_LENGTH.get();
+            event.commit();
+        }
+    }
 
+    // Pings client, false if he didn't answer within PING_TIMEOUT
+    // The read gives up at the deadline without consuming anything, so no thread is left reading from him
+    boolean pingClient(PlayerSession client) {
         try {
-            return future.get(2, TimeUnit.SECONDS);
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            return false;
-        } finally {
-            pingExecutor.shutdown();
+            writeToClient(client.getConnection(), Communication.PING);
+            String response = client.getConnection().read(PING_TIMEOUT);
+            if (Communication.PONG.equals(response)) {
+                client.setLastResponseTime(clock.millis());
+                return true;
+            }
+        } catch (IOException e) {
+            // Closed, or no answer in time
         }
+        return false;
     }
 
-    // Ping all clients in Queue
+    // Ping all clients in every Queue
     private void pingAllClients() throws IOException {
-        clientQueue_lock.lock();
-        try {
-            Iterator<Client> iterator = clientQueue.iterator();
-            while (iterator.hasNext()) {
-                Client client = iterator.next();
-                if (!pingClient(client)) {
-                    storeQueuePosition(client);
-                    iterator.remove();
-                    userDatabase.userLoggedOut(client.getUsername());
-                    String log = String.format("[QUEUE] Client %s disconnected (%d/%d)", client.getUsername(), clientQueue.size(), PLAYERS_PER_GAME);
-                    System.out.println(log);
-                    client.getSocket().close();
-                }
+        for (GameQueue[] shardQueues : queues.values()) {
+            for (GameQueue queue : shardQueues) {
+                queue.pingAllClients();
             }
-        } finally {
-            clientQueue_lock.unlock();  
         }
     }
 
+    // Called by a Queue when one of its Clients stopped answering
+    // Saves his position for a reconnection and logs him out
+    void clientDisconnected(PlayerSession client, int queuePos) {
+        sessionStore.putReconnectPosition(client.getUsername(), new ReconnectPosition(client.getQueue().getName(), client.getShard(), queuePos,
+                client.getQueueJoinTime()));
+        sessionStore.logout(client.getUsername());
+    }
+
     private void schedulePing() {
         // - Time Intervals (in seconds) -
         // Interval to send PING to all clients
@@ -408,7 +751,7 @@ public class Server {
             try {
                 pingAllClients();
             } catch (IOException e) {
-                System.out.println("Failed to ping clients: " + e.getMessage());
+                Log.warn("[QUEUE] Failed to ping clients: %s", e.getMessage());
             }
         }, 0, PING_INTERVAL, TimeUnit.SECONDS);
     }
@@ -417,230 +760,439 @@ public class Server {
         // Interval to notify clients of their Queue position
         int NOTIFY_QUEUE_POS_INTERVAL = 10;
         scheduler.scheduleAtFixedRate(() -> {
-            try {
-                notifyAllClientsPositions();
-            } catch (IOException e) {
-                System.out.println("[ERROR] Failed to notify clients positions: " + e.getMessage());
-            }
-        }, NOTIFY_QUEUE_POS_INTERVAL, NOTIFY_QUEUE_POS_INTERVAL, TimeUnit.SECONDS);
+                    for (GameQueue[] shardQueues : queues.values()) {
+                        for (GameQueue queue : shardQueues) {
+                            queue.notifyAllClientsPositions();
+                        }
+                    }
+                },
+                NOTIFY_QUEUE_POS_INTERVAL, NOTIFY_QUEUE_POS_INTERVAL, TimeUnit.SECONDS);
     }
 
-    // Sends a message to the Client regarding his Queue position
-    private void notifyClientPosition(Client client, int position) throws IOException {
-        String message = "Your queue position: " + position;
-        writeToClient(client.getSocket(), message);
+    private void scheduleLockReport() {
+        if (!InstrumentedLock.isEnabled()) return;
+        // Interval to log the contention of the server's locks
+        int LOCK_REPORT_INTERVAL = 60;
+        scheduler.scheduleAtFixedRate(() -> Log.info("[LOCKS] Contention report:%n%s", InstrumentedLock.report()),
+                LOCK_REPORT_INTERVAL, LOCK_REPORT_INTERVAL, TimeUnit.SECONDS);
     }
 
-    // Notifies all clients of their Queue position
-    private void notifyAllClientsPositions() throws IOException {
-        clientQueue_lock.lock();
-        try {
-            for (int i = 0; i < clientQueue.size(); i++) {
-                notifyClientPosition(clientQueue.get(i), i + 1);
-            }
-        } finally {
-            clientQueue_lock.unlock();
-        }
-    }
-
-    // Choose Mode, Simple or Ranked
-    private static int chooseGameMode() {
-        try (Scanner scanner = new Scanner(System.in)) {
-            while (true) {
-                System.out.print("Choose Type of Mode Simple(0) or Ranked(1): ");
-                if (scanner.hasNextInt()) {
-                    int modeChoice = scanner.nextInt();
-                    if (modeChoice == SIMPLE) {
-                        System.out.println("Simple Mode Selected");
-                        return SIMPLE;
-                    } else if (modeChoice == RANKED) {
-                        System.out.println("Ranked Mode Selected");
-                        return RANKED;
-                    } else {
-                        System.out.println("Invalid Mode Selected. Please enter 0 for Simple or 1 for Ranked.");
-                    }
-                } else {
-                    System.out.println("Invalid input. Please enter a number (0 or 1).");
-                    scanner.next(); // Consume the invalid input
-                }
-            }
+    // Asks the client which Queue he wants to join, when there is more than one
+    // Returns null if he disconnected
+    private GameQueue chooseQueue(PlayerSession client) throws IOException {
+        if (queues.size() == 1) {
+            return queueFor(queues.keySet().iterator().next(), client);
         }
-    }
 
-    // Amount of Rank to relax (add to MATCHMAKING_MAX_DIFF)
-    private void relaxMatchmaking() {
-        MATCHMAKING_MAX_DIFF += MATCHMAKING_RELAX;
-        System.out.println("[MATCHMAKING] Increased Max Difference to " + MATCHMAKING_MAX_DIFF);
-    }
+        String message = Communication.QUEUE_SELECT + " " + String.join(" ", queues.keySet());
+        while (true) {
+            writeToClient(client.getConnection(), message);
+            String answer = readFromClient(client.getConnection());
+            if (answer == null) return null;
 
-    private void scheduleMatchmakingRelax() {
-        // Interval to relax Matchmaking
-        int RELAX_MATCHMAKING_INTERVAL = 30;
-        scheduler.scheduleAtFixedRate(() -> {
-            try {
-                relaxMatchmaking();
-                checkForNewGame();
-            } catch (IOException e) {
-                serverLog(e.getMessage());
-            }
-        }, RELAX_MATCHMAKING_INTERVAL, RELAX_MATCHMAKING_INTERVAL, TimeUnit.SECONDS);
+            GameQueue queue = queueFor(answer.trim(), client);
+            if (queue != null) return queue;
+        }
     }
 
     // Assigns a token to a client
-    private void assignToken(Client client) throws IOException {
-        userDatabase_lock.lock();
-        try {
-            String sessionToken = userDatabase.assignSessionToken(client.getUsername());
-            writeToClient(client.getSocket(), Communication.TOKEN + " " + sessionToken);
-        } finally {
-            userDatabase_lock.unlock();
-        }
+    // The store only keeps its hash, the Client is the only one that knows the token
+    private void assignToken(PlayerSession client) throws IOException {
+        String sessionToken = UUID.randomUUID().toString();
+        sessionStore.putToken(SessionStore.hashToken(sessionToken), client.getUsername());
+        writeToClient(client.getConnection(), Communication.TOKEN + " " + sessionToken);
     }
 
     // Handles Client reconnection with token
-    private void handleClientReconnection(Client client) throws IOException {
+    private void handleClientReconnection(PlayerSession client) throws IOException {
 
         if (reconnectClient(client)) {
-            this.userDatabase_lock.lock();
-            int queuePos;
-            try {
-                queuePos = this.reconnectPosition.get(client.getUsername());
-            } finally {
-                this.userDatabase_lock.unlock();
+            ReconnectPosition saved = sessionStore.getReconnectPosition(client.getUsername());
+
+            // Without a saved position (or if his queue no longer exists) he joins the end of a queue
+            // He goes back to the shard he was in, his position is in that shard's queue
+            if (saved != null && saved.shard() < shards) {
+                client.setShard(saved.shard());
+            }
+            GameQueue queue = saved != null ? queueFor(saved.queue(), client) : null;
+            int queuePos = queue != null ? saved.position() : -1;
+            long queueJoinTime = queue != null ? saved.queueJoinTime() : clock.millis();
+            if (queue == null) {
+                writeToClient(client.getConnection(), Communication.RECONNECT_SUCCESS);
+                queue = chooseQueue(client);
+                if (queue == null) {
+                    logoutUser(client);
+                    client.getConnection().close();
+                    return;
+                }
+            } else {
+                writeToClient(client.getConnection(), String.format("%s %d", Communication.RECONNECT_SUCCESS, queuePos));
             }
-            String messageToClient = String.format("%s %d", Communication.RECONNECT_SUCCESS, queuePos);
-            writeToClient(client.getSocket(), messageToClient);
-            addClientToQueuePos(client, queuePos);
+            client.getConnection().endHandshake();
+            queue.add(client, queuePos, queueJoinTime);
         } else {
-            System.out.println("[RECONNECT] Client reconnection failed");
-            writeToClient(client.getSocket(), Communication.RECONNECT_FAIL);
-            client.getSocket().close();
+            Log.info("[RECONNECT] Client reconnection failed");
+            writeToClient(client.getConnection(), Communication.RECONNECT_FAIL);
+            client.getConnection().closeAfterFlush();
         }
     }
 
     // Checks if Client reconnection is valid
-    private boolean reconnectClient(Client client) throws IOException {
-        writeToClient(client.getSocket(), Communication.REQUEST_TOKEN);
-        String providedToken = readFromClient(client.getSocket());
+    private boolean reconnectClient(PlayerSession client) throws IOException {
+        writeToClient(client.getConnection(), Communication.REQUEST_TOKEN);
+        String providedToken = readFromClient(client.getConnection());
 
         if (providedToken == null || providedToken.isEmpty()) {
             return false;
         }
 
-        userDatabase_lock.lock();
+        ServerEvents.Authentication authEvent = new ServerEvents.Authentication();
+        authEvent.reconnection = true;
+        authEvent.begin();
 
+        String clientUsername = null;
         try {
-            String clientUsername = userDatabase.getUsernameFromToken(providedToken);
+            clientUsername = sessionStore.getUsername(SessionStore.hashToken(providedToken));
             if (clientUsername != null) { // success
 
-                if (userDatabase.isUserLoggedIn(clientUsername)) {
-                    writeToClient(client.getSocket(), Communication.RECONNECT_ALREADY_LOGGED_IN);
+                if (!sessionStore.login(clientUsername)) {
+                    writeToClient(client.getConnection(), Communication.RECONNECT_ALREADY_LOGGED_IN);
                     return false;
                 }
                 client.setUsername(clientUsername);
-                userDatabase.userLoggedIn(clientUsername);
-                System.out.println("[RECONNECT] " + clientUsername + " reconnected with token");
+                // He may have logged in on another server, his rank is the one in this server's database
+                userDatabase_lock.lock();
+                try {
+                    client.setRank(userDatabase.getUserRank(clientUsername));
+                } finally {
+                    userDatabase_lock.unlock();
+                }
+                Log.info("[RECONNECT] %s reconnected with token", clientUsername);
+                authEvent.success = true;
                 return true;
             }
             return false;
         } finally {
-            userDatabase_lock.unlock();
-        }
-    }
-
-    // Stores the queue position of a Client
-    // This is useful for reconnections
-    private void storeQueuePosition(Client client) {
-        clientQueue_lock.lock();
-        try {
-            String username = client.getUsername();
-            int queuePos = getQueuePosition(client);
-            reconnectPosition.put(username, queuePos);
-        } finally {
-             clientQueue_lock.unlock();
-        }
-    }
-
-    // Gets a Client's queue position
-    // Returns -1 if client is not in the queue
-    private int getQueuePosition(Client client) {
-        clientQueue_lock.lock();
-        try {
-            for (int pos = 0; pos < clientQueue.size(); pos++) {
-                if (clientQueue.get(pos) == client) return pos + 1;
+            authEvent.end();
+            if (authEvent.shouldCommit()) {
+                authEvent.usernameHash = ServerEvents.usernameHash(clientUsername);
+                authEvent.commit();
             }
-            return -1;
-        } finally {
-            clientQueue_lock.unlock();
         }
     }
 
-    public void reQueuePlayers(List<Client> clients) {
-        for (Client client : clients) {
+    public void reQueuePlayers(List<PlayerSession> clients) {
+        for (PlayerSession client : clients) {
             requeueOrExit(client);
         }
     }
 
     // Asks a client if he wants to requeue or exit
-    public void requeueOrExit(Client client) {
+    // A Client who came with a ticket can't requeue here, his session ends with the match
+    public void requeueOrExit(PlayerSession client) {
+        if (client.isGuest()) {
+            try {
+                writeToClient(client.getConnection(), "Your match is over, connect to your server again to keep playing.");
+            } catch (IOException e) {
+                // He is gone anyway
+            }
+            closeGuest(client);
+            return;
+        }
+
         try {
-            writeToClient(client.getSocket(), Communication.REQUEUE_OR_QUIT);
-            String clientAnswer = readFromClient(client.getSocket());
+            writeToClient(client.getConnection(), Communication.REQUEUE_OR_QUIT);
+            String clientAnswer = readAnswer(client.getConnection());
 
             if (clientAnswer == null || clientAnswer.isEmpty()) {
-                client.getSocket().close();
+                clientLost(client);
                 return;
             }
 
             switch (clientAnswer) {
                 case Communication.REQUEUE:
-                    addClientToQueuePos(client, -1);
+                    // Back to his own shard, even if he was handed to another one
+                    queueFor(client.getQueue().getName(), client).add(client, -1);
                     break;
     
                 case Communication.QUIT:
                     logoutUser(client);
-                    client.getSocket().close();
+                    client.getConnection().close();
                     break;
             
                 default:
                     break;
             }
         } catch (IOException e) {
-            serverLog("Failed!");
+            Log.warn("[QUEUE] Failed to requeue %s: %s", client.getUsername(), e.getMessage());
+            clientLost(client);
         }
     }
 
-    private void logoutUser(Client client) {
-        userDatabase_lock.lock();
+    // Called when a Client's connection was lost during a game (he disconnected or was evicted for
+    // falling behind). He was already matched once, so he can reconnect to the front of his Queue
+    private void clientLost(PlayerSession client) {
+        // A Client who came with a ticket has no session here to save
+        if (!client.isGuest()) {
+            sessionStore.putReconnectPosition(client.getUsername(), new ReconnectPosition(client.getQueue().getName(), client.getShard(), 1,
+                    clock.millis()));
+            logoutUser(client);
+        }
         try {
-            userDatabase.userLoggedOut(client.getUsername());
-        } finally {
-            userDatabase_lock.unlock();
+            client.getConnection().close();
+        } catch (IOException e) {
+            // Already closed
         }
     }
 
-    public static void main(String[] args) {
-        if (args.length < 1) return;
+    // True while the match coordinator forms the matches of the queues
+    boolean isCoordinated() {
+        return coordinatorLink != null && coordinatorLink.isConnected();
+    }
 
-        // Choose Mode, Simple or Ranked
-        int gameMode = chooseGameMode();
-        int port = Integer.parseInt(args[0]);
+    CoordinatorLink getCoordinatorLink() {
+        return coordinatorLink;
+    }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+    // Called by the CoordinatorLink when it (re)connects, the coordinator learns about the queued players
+    void coordinatorConnected() {
+        for (GameQueue[] shardQueues : queues.values()) {
+            for (GameQueue queue : shardQueues) {
+                queue.resendToCoordinator();
+            }
+        }
+    }
 
-            Server server = new Server(gameMode);
-            System.out.println("Server is listening on port " + port);
+    // MATCH_HOST: the coordinator gives this Server a match of the queue 'queueName'
+    // fields = MATCH_HOST <id> <queue> (<username> <rank> <ticket> <node>)*
+    void hostMatch(int matchId, String queueName, String[] fields) {
+        HostedMatch match = new HostedMatch(matchId, queueName);
+        for (int i = 3; i + 3 < fields.length; i += 4) {
+            match.usernames.put(fields[i + 2], fields[i]);
+            match.ranks.put(fields[i + 2], Integer.parseInt(fields[i + 1]));
+            match.homes.put(fields[i + 2], fields[i + 3]);
+        }
+        for (String ticket : match.usernames.keySet()) {
+            hostedMatches.put(ticket, match);
+        }
+        scheduler.schedule(() -> cancelHostedMatch(match), HOSTED_MATCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        Log.info("[COORDINATOR] Hosting match %d (%s)", matchId, queueName);
+    }
 
-            while (true) {
-                Socket socket = serverSocket.accept();
-                Thread.startVirtualThread(() -> {
-                    try {
-                        server.handleClient(socket);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
+    // MATCH_PLAYER: the coordinator matched the Client 'username', queued here, in match 'matchId'
+    // If this Server hosts it he joins it directly, otherwise he is sent to the host with his ticket
+    void movePlayer(int matchId, String queueName, String username, String hostNodeId, String host, int port, String ticket) {
+        GameQueue[] shardQueues = queues.get(queueName);
+        if (shardQueues == null) return;
+
+        for (GameQueue queue : shardQueues) {
+            if (hostNodeId.equals(nodeId)) {
+                queue.takeForMatch(username, client -> joinHostedMatch(ticket, client));
+            } else {
+                queue.takeForMatch(username, client -> gameThreadPool.execute(() -> redirectClient(client, host, port, ticket)));
+            }
+        }
+        Log.debug("[COORDINATOR] Match %d: moving %s", matchId, username);
+    }
+
+    // Sends a Client to the node that hosts his match, he is no longer logged in here
+    private void redirectClient(PlayerSession client, String host, int port, String ticket) {
+        logoutUser(client);
+        try {
+            writeToClient(client.getConnection(), String.join(" ", Communication.REDIRECT, host, String.valueOf(port), ticket));
+            Log.info("[COORDINATOR] %s sent to %s:%d", client.getUsername(), host, port);
+        } catch (IOException e) {
+            Log.warn("[COORDINATOR] Failed to redirect %s: %s", client.getUsername(), e.getMessage());
+        }
+        try {
+            // He must get the REDIRECT before the connection ends
+            client.getConnection().closeAfterFlush();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Handles a Client sent here by another node to play a hosted match
+    // clientAction = CLIENT_JOIN_MATCH <ticket>
+    // Returns true if he goes back to the welcome menu (his ticket is invalid)
+    private boolean handleClientJoinMatch(PlayerSession client, String clientAction) throws IOException {
+        String[] parts = clientAction.split(" ");
+        String ticket = parts.length == 2 ? parts[1] : "";
+
+        // The ticket may arrive just before MATCH_HOST, the coordinator sends them on different connections
+        HostedMatch match = hostedMatches.get(ticket);
+        long deadline = clock.millis() + JOIN_MATCH_WAIT;
+        while (match == null && !ticket.isEmpty() && clock.millis() < deadline) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException e) {
+                break;
             }
+            match = hostedMatches.get(ticket);
+        }
+
+        String username = null;
+        int rank = 0;
+        String homeNode = null;
+        if (match != null) {
+            synchronized (match) {
+                username = match.usernames.get(ticket);
+                rank = match.ranks.get(ticket);
+                homeNode = match.homes.get(ticket);
+            }
+        }
+        if (username == null) {
+            Log.info("[COORDINATOR] A Client joined with an invalid ticket");
+            writeToClient(client.getConnection(), Communication.JOIN_MATCH_FAIL);
+            return true;
+        }
+
+        // The ticket only lets him play this match: he isn't logged in here and gets no token,
+        // his session stays with his node and he goes back to it when the match ends
+        client.setUsername(username);
+        client.setRank(rank);
+        client.setHomeNode(homeNode);
+        client.getConnection().endHandshake();
+        joinHostedMatch(ticket, client);
+        return false;
+    }
+
+    // Adds a Client to the hosted match of 'ticket', starting it if he was the last one
+    private void joinHostedMatch(String ticket, PlayerSession client) {
+        HostedMatch match = hostedMatches.remove(ticket);
+        List<PlayerSession> players = null;
+
+        GameQueue queue = queueFor(match != null ? match.queue : "", client);
+        client.setQueue(queue != null ? queue : queues.values().iterator().next()[client.getShard()]);
+        client.setQueueJoinTime(clock.millis());
+
+        if (match != null) {
+            synchronized (match) {
+                if (!match.cancelled) {
+                    match.usernames.remove(ticket);
+                    match.joined.add(client);
+                    if (match.usernames.isEmpty()) players = new ArrayList<>(match.joined);
+                }
+            }
+        }
+
+        if (players != null) {
+            startNewGames(List.of(players));
+        } else if (match == null || match.cancelled) {
+            hostedMatchGone(client);
+        }
+    }
+
+    // The hosted match of a Client is gone: he waits in the queue again, or if he came with a
+    // ticket he is sent away (his session is on his node)
+    private void hostedMatchGone(PlayerSession client) {
+        if (!client.isGuest()) {
+            client.getQueue().add(client, -1, client.getQueueJoinTime());
+            return;
+        }
+
+        gameThreadPool.execute(() -> {
+            try {
+                writeToClient(client.getConnection(), Communication.JOIN_MATCH_FAIL);
+            } catch (IOException e) {
+                // He is gone anyway
+            }
+            closeGuest(client);
+        });
+    }
+
+    // Ends the connection of a Client who came with a ticket, after his last message
+    // He has no session here to save
+    private void closeGuest(PlayerSession client) {
+        try {
+            client.getConnection().closeAfterFlush();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Gives up on a hosted match whose players didn't all join in time, the ones that did go back to the queue
+    private void cancelHostedMatch(HostedMatch match) {
+        List<PlayerSession> joined;
+        synchronized (match) {
+            if (match.usernames.isEmpty()) return;
+            match.cancelled = true;
+            joined = new ArrayList<>(match.joined);
+        }
+
+        match.usernames.keySet().forEach(hostedMatches::remove);
+        Log.info("[COORDINATOR] Match %d cancelled, not every player joined", match.id);
+        for (PlayerSession client : joined) {
+            hostedMatchGone(client);
+        }
+    }
+
+    // A Client who came with a ticket was never logged in here
+    void logoutUser(PlayerSession client) {
+        if (client.isGuest()) return;
+        sessionStore.logout(client.getUsername());
+    }
+
+    // Rank change of a Client after a game
+    // The user database of a Client who came with a ticket is the one of his node, so his change is
+    // sent there through the coordinator
+    void publishRankChange(PlayerSession client, int rankDelta) {
+        if (!client.isGuest()) {
+            ratingUpdater.publish(client.getUsername(), rankDelta);
+            return;
+        }
+        if (coordinatorLink == null || !coordinatorLink.sendRankChange(client.getHomeNode(), client.getUsername(), rankDelta)) {
+            Log.warn("[COORDINATOR] Lost a rank change of %s, the coordinator can't be reached to send it to node %s",
+                    client.getUsername(), client.getHomeNode());
+        }
+    }
+
+    // RANK_CHANGE: a Client of this node played a match hosted by another node
+    void applyRankChange(String username, int rankDelta) {
+        ratingUpdater.publish(username, rankDelta);
+    }
+
+    public static void main(String[] args) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println(e.getMessage());
+            ServerConfig.printUsage();
+            return;
+        }
+        try {
+            ConnectionAcceptor acceptor = new ConnectionAcceptor(config);
+            int port = acceptor.getPort();
+
+            Server server = new Server(config, Clock.systemUTC());
+            // Stopping the server (Ctrl+C, SIGTERM) saves the sessions and queue positions for the next start
+            // No new connections are accepted from then on
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    acceptor.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+                server.shutdown();
+                // The shutdown's messages (snapshot, ratings) are still in the logger's buffer
+                Log.flush();
+            }, "shutdown"));
+            Log.info("Server is listening on port %d", port);
+            for (ServerConfig.QueueConfig queue : config.getQueues()) {
+                Log.info("Queue %s (%s mode)", queue.name(), ServerConfig.modeName(queue.gameMode()));
+            }
+
+            // Metrics are always available through JMX, and over HTTP when -Dmetrics.port=<port> is given
+            Metrics.registerMBean();
+            int metricsPort = Integer.getInteger("metrics.port", -1);
+            if (metricsPort >= 0) {
+                Metrics.startHttpServer(metricsPort);
+                Log.info("Metrics available at http://localhost:%d/metrics", metricsPort);
+            }
+
+            acceptor.start(server);
+            Log.info("%d acceptor(s)%s, backlog %d", config.getAcceptors(), acceptor.usesReusePort() ? " with SO_REUSEPORT" : "", config.getBacklog());
 
         } catch (IOException ex) {
             System.out.println("Server exception: " + ex.getMessage());
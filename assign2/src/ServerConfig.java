@@ -0,0 +1,409 @@
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+// Server settings, read from a properties file and/or command line options (options win over the file,
+// wherever --config is given)
+//
+// java Server <port> [--queue <name>:<simple|ranked>]... [--shards <n|auto>]
+//             [--coordinator <host:port> --coordinator-secret <secret> [--node-id <id>] [--advertise <host>]
+//              [--capacity <games>]]
+//             [--session-store <memory|host:port> --session-store-secret <secret>]
+//             [--acceptors <n>] [--backlog <n>] [--accept-rate <n/s>] [--max-pre-auth <n>]
+//             [--users <file>] [--config <file>]
+//
+// Example file:
+//   port=12345
+//   queues=simple:simple,ranked:ranked
+//   shards=auto
+//   coordinator=localhost:7000
+//   coordinator.secret=s3cret
+//   session.store=localhost:7001
+//   session.store.secret=s3cret
+//   acceptors=4
+//   accept.rate=500
+//   users.file=src/database/users.json
+//
+// Without any queue the server runs one simple queue and one ranked queue
+public class ServerConfig {
+    // A named queue and its game mode (Server.SIMPLE or Server.RANKED)
+    public record QueueConfig(String name, int gameMode) {}
+
+    private int port = -1;
+    // Per-core shards, 0 to run without them
+    private int shards = 0;
+    private final List<QueueConfig> queues = new ArrayList<>();
+
+    // - Match coordinator (optional, see MatchCoordinator) -
+    // "host:port" of the coordinator, null to match players locally
+    private String coordinator;
+    // Secret shared by the coordinator and its nodes, required with a coordinator
+    private String coordinatorSecret;
+    // Id of this node, its address for the clients sent to it and the amount of games it accepts
+    private String nodeId;
+    private String advertisedHost = "localhost";
+    private int capacity = 1000;
+
+    // "host:port" of a SessionStoreServer shared with other servers, null to keep the sessions in memory
+    private String sessionStore;
+    // Secret of the SessionStoreServer, required with one
+    private String sessionStoreSecret;
+
+    // - Accepting connections (see ConnectionAcceptor) -
+    // Acceptor threads, the size of the accept backlog, connections accepted per second (0 for no limit)
+    // and connections that can be logging in at once
+    private int acceptors = 1;
+    private int backlog = 128;
+    private int acceptRate = 0;
+    private int maxPreAuth = 1000;
+
+    // User database file, null for the default one (src/database/users.json)
+    private String usersFile;
+    // Restart snapshot (see Server.shutdown) and clearing the clients' token files at startup
+    // In-process harnesses turn it off, so they leave the files of the real server alone
+    private boolean snapshots = true;
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        if (shards < 0) {
+            throw new IllegalArgumentException("Invalid amount of shards: " + shards);
+        }
+        this.shards = shards;
+    }
+
+    public String getCoordinator() {
+        return coordinator;
+    }
+
+    public void setCoordinator(String coordinator) {
+        if (!coordinator.matches("[^:]+:\\d+")) {
+            throw new IllegalArgumentException("Invalid coordinator address (host:port): " + coordinator);
+        }
+        this.coordinator = coordinator;
+    }
+
+    public String getCoordinatorSecret() {
+        return coordinatorSecret;
+    }
+
+    public void setCoordinatorSecret(String coordinatorSecret) {
+        if (!coordinatorSecret.matches("\\S+")) {
+            throw new IllegalArgumentException("Invalid coordinator secret (no spaces)");
+        }
+        this.coordinatorSecret = coordinatorSecret;
+    }
+
+    public String getCoordinatorHost() {
+        return coordinator.substring(0, coordinator.lastIndexOf(':'));
+    }
+
+    public int getCoordinatorPort() {
+        return Integer.parseInt(coordinator.substring(coordinator.lastIndexOf(':') + 1));
+    }
+
+    // Defaults to <advertised host>:<port>
+    public String getNodeId() {
+        return nodeId != null ? nodeId : advertisedHost + ":" + port;
+    }
+
+    public String getAdvertisedHost() {
+        return advertisedHost;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public String getSessionStore() {
+        return sessionStore;
+    }
+
+    // "memory" (the default) or the "host:port" of a SessionStoreServer
+    public void setSessionStore(String sessionStore) {
+        if (sessionStore.equals("memory")) {
+            this.sessionStore = null;
+            return;
+        }
+        if (!sessionStore.matches("[^:]+:\\d+")) {
+            throw new IllegalArgumentException("Invalid session store (memory or host:port): " + sessionStore);
+        }
+        this.sessionStore = sessionStore;
+    }
+
+    public String getSessionStoreSecret() {
+        return sessionStoreSecret;
+    }
+
+    public void setSessionStoreSecret(String sessionStoreSecret) {
+        if (!sessionStoreSecret.matches("\\S+")) {
+            throw new IllegalArgumentException("Invalid session store secret (no spaces)");
+        }
+        this.sessionStoreSecret = sessionStoreSecret;
+    }
+
+    public String getUsersFile() {
+        return usersFile;
+    }
+
+    public void setUsersFile(String usersFile) {
+        this.usersFile = usersFile;
+    }
+
+    public boolean usesSnapshots() {
+        return snapshots;
+    }
+
+    public void setSnapshots(boolean snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("Invalid amount of acceptors: " + acceptors);
+        }
+        this.acceptors = acceptors;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        if (backlog < 1) {
+            throw new IllegalArgumentException("Invalid backlog: " + backlog);
+        }
+        this.backlog = backlog;
+    }
+
+    public int getAcceptRate() {
+        return acceptRate;
+    }
+
+    public void setAcceptRate(int acceptRate) {
+        if (acceptRate < 0) {
+            throw new IllegalArgumentException("Invalid accept rate: " + acceptRate);
+        }
+        this.acceptRate = acceptRate;
+    }
+
+    public int getMaxPreAuth() {
+        return maxPreAuth;
+    }
+
+    public void setMaxPreAuth(int maxPreAuth) {
+        if (maxPreAuth < 1) {
+            throw new IllegalArgumentException("Invalid amount of pre-auth connections: " + maxPreAuth);
+        }
+        this.maxPreAuth = maxPreAuth;
+    }
+
+    public String getSessionStoreHost() {
+        return sessionStore.substring(0, sessionStore.lastIndexOf(':'));
+    }
+
+    public int getSessionStorePort() {
+        return Integer.parseInt(sessionStore.substring(sessionStore.lastIndexOf(':') + 1));
+    }
+
+    // "auto" is one shard per core
+    private static int parseShards(String value) {
+        if (value.equals("auto")) return Runtime.getRuntime().availableProcessors();
+        return Integer.parseInt(value);
+    }
+
+    // Queues in the order they are offered to clients
+    public List<QueueConfig> getQueues() {
+        if (queues.isEmpty()) {
+            return List.of(new QueueConfig("simple", Server.SIMPLE), new QueueConfig("ranked", Server.RANKED));
+        }
+        return queues;
+    }
+
+    public void addQueue(String name, int gameMode) {
+        if (!name.matches("\\w+")) {
+            throw new IllegalArgumentException("Invalid queue name: " + name);
+        }
+        for (QueueConfig queue : queues) {
+            if (queue.name().equals(name)) {
+                throw new IllegalArgumentException("Duplicated queue: " + name);
+            }
+        }
+        queues.add(new QueueConfig(name, gameMode));
+    }
+
+    // Config with a single queue named after 'gameMode'
+    public static ServerConfig singleQueue(int gameMode) {
+        ServerConfig config = new ServerConfig();
+        config.addQueue(modeName(gameMode), gameMode);
+        return config;
+    }
+
+    public static String modeName(int gameMode) {
+        return gameMode == Server.RANKED ? "ranked" : "simple";
+    }
+
+    private static int parseMode(String mode) {
+        return switch (mode) {
+            case "simple" -> Server.SIMPLE;
+            case "ranked" -> Server.RANKED;
+            default -> throw new IllegalArgumentException("Unknown game mode: " + mode);
+        };
+    }
+
+    // Adds the queues of a "name:mode,name:mode" list
+    private void addQueues(String list) {
+        for (String queue : list.split(",")) {
+            addQueue(queue.trim());
+        }
+    }
+
+    // Adds a "name:mode" queue ("ranked" alone is the same as "ranked:ranked")
+    private void addQueue(String queue) {
+        String[] parts = queue.split(":");
+        if (parts.length > 2) {
+            throw new IllegalArgumentException("Invalid queue: " + queue);
+        }
+        addQueue(parts[0], parseMode(parts.length == 2 ? parts[1] : parts[0]));
+    }
+
+    // Reads the settings of a properties file
+    public void load(String path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(path)) {
+            properties.load(reader);
+        }
+
+        String portValue = properties.getProperty("port");
+        if (portValue != null) port = Integer.parseInt(portValue.trim());
+
+        String queuesValue = properties.getProperty("queues");
+        if (queuesValue != null) addQueues(queuesValue);
+
+        String shardsValue = properties.getProperty("shards");
+        if (shardsValue != null) setShards(parseShards(shardsValue.trim()));
+
+        String coordinatorValue = properties.getProperty("coordinator");
+        if (coordinatorValue != null) setCoordinator(coordinatorValue.trim());
+        String coordinatorSecretValue = properties.getProperty("coordinator.secret");
+        if (coordinatorSecretValue != null) setCoordinatorSecret(coordinatorSecretValue.trim());
+        nodeId = properties.getProperty("node.id", nodeId);
+        advertisedHost = properties.getProperty("advertise", advertisedHost).trim();
+        capacity = Integer.parseInt(properties.getProperty("capacity", String.valueOf(capacity)).trim());
+
+        String sessionStoreValue = properties.getProperty("session.store");
+        if (sessionStoreValue != null) setSessionStore(sessionStoreValue.trim());
+        String sessionStoreSecretValue = properties.getProperty("session.store.secret");
+        if (sessionStoreSecretValue != null) setSessionStoreSecret(sessionStoreSecretValue.trim());
+
+        setAcceptors(Integer.parseInt(properties.getProperty("acceptors", String.valueOf(acceptors)).trim()));
+        setBacklog(Integer.parseInt(properties.getProperty("backlog", String.valueOf(backlog)).trim()));
+        setAcceptRate(Integer.parseInt(properties.getProperty("accept.rate", String.valueOf(acceptRate)).trim()));
+        setMaxPreAuth(Integer.parseInt(properties.getProperty("max.pre.auth", String.valueOf(maxPreAuth)).trim()));
+        usersFile = properties.getProperty("users.file", usersFile);
+    }
+
+    // Reads the command line: an optional port, then "--option value" pairs
+    // Throws IllegalArgumentException if anything is invalid
+    public static ServerConfig fromArgs(String[] args) throws IOException {
+        ServerConfig config = new ServerConfig();
+        List<String> cliQueues = new ArrayList<>();
+        int cliPort = -1;
+        int cliShards = -1;
+
+        int first = 0;
+        if (args.length > 0 && !args[0].startsWith("--")) {
+            cliPort = Integer.parseInt(args[0]);
+            first = 1;
+        }
+
+        // The file is loaded before any option is applied, wherever --config is, so the options win over it
+        for (int i = first; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of " + args[i]);
+            }
+            if (args[i].equals("--config")) config.load(args[i + 1]);
+        }
+
+        for (int i = first; i < args.length; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            switch (option) {
+                case "--config" -> {}
+                case "--queue" -> cliQueues.add(value);
+                case "--shards" -> cliShards = parseShards(value);
+                case "--coordinator" -> config.setCoordinator(value);
+                case "--coordinator-secret" -> config.setCoordinatorSecret(value);
+                case "--node-id" -> config.nodeId = value;
+                case "--advertise" -> config.advertisedHost = value;
+                case "--capacity" -> config.capacity = Integer.parseInt(value);
+                case "--session-store" -> config.setSessionStore(value);
+                case "--session-store-secret" -> config.setSessionStoreSecret(value);
+                case "--acceptors" -> config.setAcceptors(Integer.parseInt(value));
+                case "--backlog" -> config.setBacklog(Integer.parseInt(value));
+                case "--accept-rate" -> config.setAcceptRate(Integer.parseInt(value));
+                case "--max-pre-auth" -> config.setMaxPreAuth(Integer.parseInt(value));
+                case "--users" -> config.usersFile = value;
+                default -> throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+
+        // Queues given in the command line replace the ones of the file
+        if (!cliQueues.isEmpty()) {
+            config.queues.clear();
+            cliQueues.forEach(config::addQueue);
+        }
+        if (cliPort != -1) config.port = cliPort;
+        if (cliShards != -1) config.setShards(cliShards);
+        if (config.port < 0) {
+            throw new IllegalArgumentException("Missing port");
+        }
+        if (config.coordinator != null && config.coordinatorSecret == null) {
+            throw new IllegalArgumentException("Missing the coordinator's secret (--coordinator-secret)");
+        }
+        if (config.sessionStore != null && config.sessionStoreSecret == null) {
+            throw new IllegalArgumentException("Missing the session store's secret (--session-store-secret)");
+        }
+        return config;
+    }
+
+    public static void printUsage() {
+        System.out.println("Usage: java Server <port> [options]");
+        System.out.println("  --queue <name>:<simple|ranked>   Adds a queue, can be repeated (default: simple:simple and ranked:ranked)");
+        System.out.println("  --shards <n|auto>                Runs n per-core shards, each with its own queues and games (default: 0, no shards)");
+        System.out.println("  --coordinator <host:port>        Lets a match coordinator match the players of every node (default: local matching)");
+        System.out.println("  --coordinator-secret <secret>    Secret the coordinator was started with (required with --coordinator)");
+        System.out.println("  --node-id <id>                   Id of this node for the coordinator (default: <advertised host>:<port>)");
+        System.out.println("  --advertise <host>               Host clients are sent to when this node hosts their match (localhost)");
+        System.out.println("  --capacity <games>               Games this node accepts from the coordinator (1000)");
+        System.out.println("  --session-store <memory|host:port> Keeps tokens, logins and reconnect positions in a SessionStoreServer (memory)");
+        System.out.println("  --session-store-secret <secret>  Secret the session store was started with (required with a session store)");
+        System.out.println("  --acceptors <n>                  Threads accepting connections, with SO_REUSEPORT where supported (1)");
+        System.out.println("  --backlog <n>                    Connections the OS keeps waiting to be accepted (128)");
+        System.out.println("  --accept-rate <n>                Connections accepted per second, 0 for no limit (0)");
+        System.out.println("  --max-pre-auth <n>               Accepted connections that can be logging in at once (1000)");
+        System.out.println("  --users <file>                   User database file (src/database/users.json)");
+        System.out.println("  --config <file>                  Properties file with the same settings: port, queues, shards, coordinator,");
+        System.out.println("                                   coordinator.secret, node.id, advertise, capacity, session.store,");
+        System.out.println("                                   session.store.secret, acceptors, backlog, accept.rate, max.pre.auth and");
+        System.out.println("                                   users.file (e.g. queues=simple:simple)");
+    }
+}
@@ -0,0 +1,155 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JDK Flight Recorder events for the server's main phases
+// Record them with: jcmd <pid> JFR.start name=trivia settings=profile filename=trivia.jfr
+// Usernames are stored as an HMAC with a key drawn at startup, so recordings can be shared without the names:
+// the same user has the same hash in every event of a run, but the key never leaves the process
+public final class ServerEvents {
+    private ServerEvents() {}
+
+    private static final SecretKeySpec usernameKey = newUsernameKey();
+
+    private static SecretKeySpec newUsernameKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    // First 8 bytes of the HMAC-SHA256 of the username, 0 for none
+    public static long usernameHash(String username) {
+        if (username == null) return 0;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(usernameKey);
+            return ByteBuffer.wrap(mac.doFinal(username.getBytes(StandardCharsets.UTF_8))).getLong();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Name("trivia.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({"Trivia", "Connection"})
+    public static class ConnectionAccepted extends Event {
+        @Label("Remote Port")
+        public int remotePort;
+    }
+
+    // Duration event, from the moment the password is received until the result is known
+    @Name("trivia.Authentication")
+    @Label("Authentication")
+    @Category({"Trivia", "Connection"})
+    public static class Authentication extends Event {
+        @Label("Username Hash")
+        public long usernameHash;
+
+        @Label("Success")
+        public boolean success;
+
+        @Label("Reconnection")
+        @Description("Authenticated with a session token instead of a password")
+        public boolean reconnection;
+
+        @Label("Bcrypt Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long bcryptNanos;
+    }
+
+    @Name("trivia.Enqueue")
+    @Label("Enqueue")
+    @Category({"Trivia", "Queue"})
+    public static class Enqueue extends Event {
+        @Label("Username Hash")
+        public long usernameHash;
+
+        @Label("Queue Position")
+        public int queuePosition;
+
+        @Label("Queue Size")
+        public int queueSize;
+    }
+
+    @Name("trivia.Dequeue")
+    @Label("Dequeue")
+    @Category({"Trivia", "Queue"})
+    public static class Dequeue extends Event {
+        @Label("Username Hash")
+        public long usernameHash;
+
+        @Label("Reason")
+        public String reason;
+
+        @Label("Wait Time")
+        @Timespan(Timespan.MILLISECONDS)
+        public long waitMillis;
+    }
+
+    @Name("trivia.MatchFormed")
+    @Label("Match Formed")
+    @Category({"Trivia", "Queue"})
+    public static class MatchFormed extends Event {
+        @Label("Game Id")
+        public int gameId;
+
+        @Label("Rank Difference")
+        public int rankDiff;
+
+        @Label("Longest Wait")
+        @Timespan(Timespan.MILLISECONDS)
+        public long waitMillis;
+
+        @Label("Queue Size")
+        public int queueSize;
+    }
+
+    // Duration event, from the question being sent until every player answered
+    @Name("trivia.Round")
+    @Label("Round")
+    @Category({"Trivia", "Game"})
+    public static class Round extends Event {
+        @Label("Game Id")
+        public int gameId;
+
+        @Label("Round")
+        public int round;
+    }
+
+    @Name("trivia.AnswerReceived")
+    @Label("Answer Received")
+    @Category({"Trivia", "Game"})
+    public static class AnswerReceived extends Event {
+        @Label("Game Id")
+        public int gameId;
+
+        @Label("Username Hash")
+        public long usernameHash;
+
+        @Label("Correct")
+        public boolean correct;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        public long latencyNanos;
+    }
+
+    // Duration event around writing the user database file
+    @Name("trivia.UsersSaved")
+    @Label("Users Saved")
+    @Category({"Trivia", "Database"})
+    public static class UsersSaved extends Event {
+        @Label("Users")
+        public int userCount;
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// Session state of the players: their session tokens, who is logged in and the queue position
+// of the ones that disconnected while queued
+// InMemorySessionStore keeps it inside one server. RemoteSessionStore keeps it in a SessionStoreServer
+// shared by several servers, so a player can reconnect to any of them with his token
+// Tokens are only given to a store as hashes (hashToken)
+public interface SessionStore extends Closeable {
+    // Saves the token of 'username', replacing his previous one
+    void putToken(String tokenHash, String username);
+
+    // Owner of a token, null if it is not valid
+    String getUsername(String tokenHash) throws IOException;
+
+    // Marks 'username' as logged in, false if he already was
+    boolean login(String username) throws IOException;
+
+    void logout(String username);
+
+    // Saves where 'username' was queued when he disconnected
+    void putReconnectPosition(String username, Server.ReconnectPosition position);
+
+    // Where 'username' was queued when he disconnected, null if he wasn't
+    Server.ReconnectPosition getReconnectPosition(String username) throws IOException;
+
+    // SHA-256 of a session token, in hex
+    // Tokens are random UUIDs, so a fast hash is enough and lets the store look them up directly
+    static String hashToken(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
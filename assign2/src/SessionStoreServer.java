@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+// Session store shared by several game servers (see RemoteSessionStore)
+// Keeps an InMemorySessionStore and answers the requests of each server in order (see Communication).
+// A server sends its requests in batches, and the answers of a batch go back in one write
+//
+// It holds every session token, so it only listens on the loopback interface unless told otherwise,
+// and a server must start with the shared secret (STORE_AUTH). A login belongs to the connection of
+// the server that made it: when that server disconnects (or crashes) its players are logged out
+//
+// java SessionStoreServer <port> --secret <secret> [--bind <address>],
+// or SessionStoreServer.start(address, port, secret) to run it in-process
+public class SessionStoreServer {
+    private final ServerSocket serverSocket;
+    private final byte[] secret;
+    private final InMemorySessionStore store = new InMemorySessionStore();
+
+    private SessionStoreServer(ServerSocket serverSocket, String secret) {
+        this.serverSocket = serverSocket;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Starts a store listening on 'port' of 'bindAddress' (0 for any free port, see getPort)
+    // Servers must authenticate with 'secret'
+    public static SessionStoreServer start(InetAddress bindAddress, int port, String secret) throws IOException {
+        if (secret == null || !secret.matches("\\S+")) {
+            throw new IllegalArgumentException("The session store needs a secret without spaces");
+        }
+        SessionStoreServer storeServer = new SessionStoreServer(new ServerSocket(port, 50, bindAddress), secret);
+        Thread.ofPlatform().name("session-store-acceptor").start(storeServer::acceptServers);
+        return storeServer;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptServers() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                SocketConnection connection = new SocketConnection(socket);
+                SocketAddress address = socket.getRemoteSocketAddress();
+                Thread.startVirtualThread(() -> serve(connection, address));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.warn("[STORE] Failed to accept a server: %s", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Answers the requests of one server until it disconnects, then logs out the players it logged in
+    // The connection owns those logins
+    private void serve(SocketConnection connection, SocketAddress address) {
+        StringBuilder answers = new StringBuilder();
+        try {
+            String request = connection.read();
+            String[] auth = request != null ? request.split(" ") : new String[0];
+            if (auth.length != 2 || !auth[0].equals(Communication.STORE_AUTH)
+                    || !MessageDigest.isEqual(secret, auth[1].getBytes(StandardCharsets.UTF_8))) {
+                Log.warn("[STORE] Refused a server from %s: bad authentication", address);
+                connection.close();
+                return;
+            }
+
+            while ((request = connection.read()) != null) {
+                String answer = handleRequest(request.split(" "), connection);
+                if (answer != null) {
+                    if (!answers.isEmpty()) answers.append('\n');
+                    answers.append(answer);
+                }
+                if (!answers.isEmpty() && !connection.hasPendingInput()) {
+                    connection.write(answers.toString());
+                    answers.setLength(0);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.warn("[STORE] Error serving a server: %s", e.getMessage());
+        }
+
+        int released = store.releaseLogins(connection);
+        if (released > 0) {
+            Log.info("[STORE] Server at %s disconnected, logged out its %d players", address, released);
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Applies one request of the server on 'connection', returns its answer (null if it has none)
+    private String handleRequest(String[] fields, SocketConnection connection) {
+        switch (fields[0]) {
+            case Communication.STORE_TOKEN_PUT:
+                store.putToken(fields[1], fields[2]);
+                return null;
+            case Communication.STORE_TOKEN_GET:
+                String username = store.getUsername(fields[1]);
+                return username != null ? username : Communication.STORE_NONE;
+            case Communication.STORE_LOGIN:
+                return store.login(fields[1], connection) ? "1" : "0";
+            case Communication.STORE_LOGOUT:
+                store.logout(fields[1]);
+                return null;
+            case Communication.STORE_POSITION_PUT:
+                store.putReconnectPosition(fields[1],
+                        new Server.ReconnectPosition(fields[2], Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                                Long.parseLong(fields[5])));
+                return null;
+            case Communication.STORE_POSITION_GET:
+                Server.ReconnectPosition position = store.getReconnectPosition(fields[1]);
+                return position != null
+                        ? position.queue() + " " + position.shard() + " " + position.position() + " " + position.queueJoinTime()
+                        : Communication.STORE_NONE;
+            default:
+                throw new IllegalArgumentException("Unknown request: " + fields[0]);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String secret = null;
+        InetAddress bindAddress = InetAddress.getLoopbackAddress();
+        boolean valid = args.length >= 1 && args.length % 2 == 1;
+        for (int i = 1; valid && i < args.length; i += 2) {
+            switch (args[i]) {
+                case "--secret" -> secret = args[i + 1];
+                case "--bind" -> bindAddress = InetAddress.getByName(args[i + 1]);
+                default -> valid = false;
+            }
+        }
+        if (!valid || secret == null) {
+            System.out.println("Usage: java SessionStoreServer <port> --secret <secret> [--bind <address>]");
+            System.out.println("  --secret <secret>   Secret the servers connect with (their --session-store-secret)");
+            System.out.println("  --bind <address>    Address to listen on, e.g. 0.0.0.0 for every interface (loopback)");
+            return;
+        }
+
+        SessionStoreServer storeServer = start(bindAddress, Integer.parseInt(args[0]), secret);
+        Log.info("Session store is listening on %s:%d", bindAddress.getHostAddress(), storeServer.getPort());
+    }
+}
@@ -0,0 +1,285 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+// Ranked matchmaking split into shards by rank band
+// Each shard owns a MatchmakingPool and a lock, so joins and matches in different bands run in parallel.
+// A shard that can't find an opponent for a player steals one from every other shard his window reaches
+// Shard 'i' holds ranks [lowerBounds[i - 1], lowerBounds[i]), the first and last shards also take
+// every rank below/above them. The bands start 'bandWidth' wide, and are moved to the quantiles of the
+// waiting players' ranks when one shard holds too many of them (every new player starts at the same rank)
+public class ShardedMatchmaker {
+    private static class Shard {
+        final Lock lock = InstrumentedLock.create("matchmakingShard_lock");
+        final MatchmakingPool pool;
+
+        Shard(MatchmakingPool pool) {
+            this.pool = pool;
+        }
+    }
+
+    // A shard is rebalanced when it holds more than REBALANCE_FACTOR times its share of the players
+    private static final int REBALANCE_FACTOR = 2;
+
+    private final Shard[] shards;
+    // Lowest rank of shards 1..n-1, replaced (never changed) while every shard is locked
+    private volatile int[] lowerBounds;
+    // Largest window a player can reach, two players further than twice this never match
+    private final int maxWindow;
+
+    public ShardedMatchmaker(int shardCount, int bandWidth, int baseWindow, int windowRelax, long relaxIntervalMillis, int maxWindow) {
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(new MatchmakingPool(baseWindow, windowRelax, relaxIntervalMillis, maxWindow));
+        }
+        this.lowerBounds = new int[shardCount - 1];
+        for (int i = 1; i < shardCount; i++) {
+            lowerBounds[i - 1] = i * bandWidth;
+        }
+        this.maxWindow = maxWindow;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    // Amount of players in every shard
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                size += shard.pool.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private static int shardIndex(int[] bounds, int rank) {
+        int index = Arrays.binarySearch(bounds, rank);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private int shardIndex(int rank) {
+        return shardIndex(lowerBounds, rank);
+    }
+
+    // Locks and returns the shard of 'rank'
+    // The bounds are checked again once locked, a rebalance may have moved the rank meanwhile
+    private Shard lockShardOf(int rank) {
+        while (true) {
+            int[] bounds = lowerBounds;
+            Shard shard = shards[shardIndex(bounds, rank)];
+            shard.lock.lock();
+            if (bounds == lowerBounds) return shard;
+            shard.lock.unlock();
+        }
+    }
+
+    public void add(PlayerSession client) {
+        Shard shard = lockShardOf(client.getRank());
+        try {
+            shard.pool.add(client);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // Returns false if the client was not waiting for a match
+    public boolean remove(PlayerSession client) {
+        Shard shard = lockShardOf(client.getRank());
+        try {
+            return shard.pool.remove(client);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // Finds an opponent for a Client that is already in a shard
+    // His own shard is searched first, then every shard his window can reach, closest first (work stealing):
+    // an opponent is at most his window plus the largest window away
+    // Both players are removed from their shards when a match is found
+    // Returns null if there is no compatible opponent
+    public List<PlayerSession> findMatch(PlayerSession client, long now) {
+        int rank = client.getRank();
+        int reach = shards[0].pool.window(client, now) + maxWindow;
+        int index = shardIndex(rank);
+        int lowest = shardIndex(rank - reach);
+        int highest = shardIndex(rank + reach);
+
+        PlayerSession opponent = tryMatch(client, index, index, now);
+        for (int distance = 1; opponent == null && (index - distance >= lowest || index + distance <= highest); distance++) {
+            if (index - distance >= lowest) {
+                opponent = tryMatch(client, index, index - distance, now);
+            }
+            if (opponent == null && index + distance <= highest) {
+                opponent = tryMatch(client, index, index + distance, now);
+            }
+        }
+        if (opponent == null) return null;
+
+        List<PlayerSession> playerList = new ArrayList<>(2);
+        playerList.add(opponent);
+        playerList.add(client);
+        return playerList;
+    }
+
+    // Looks for an opponent of 'client' (who is in shard 'own') in shard 'other'
+    // Both shards are locked in index order, so two stealing shards can't deadlock
+    private PlayerSession tryMatch(PlayerSession client, int own, int other, long now) {
+        Shard first = shards[Math.min(own, other)];
+        Shard second = shards[Math.max(own, other)];
+
+        first.lock.lock();
+        if (second != first) second.lock.lock();
+        try {
+            // Someone else may have matched him meanwhile
+            if (!shards[own].pool.contains(client)) return null;
+
+            PlayerSession opponent = shards[other].pool.findOpponent(client, now);
+            if (opponent == null) return null;
+
+            shards[own].pool.remove(client);
+            shards[other].pool.remove(opponent);
+            return opponent;
+        } finally {
+            if (second != first) second.lock.unlock();
+            first.lock.unlock();
+        }
+    }
+
+    // Pairs as many players as possible
+    // The shards are rebalanced first if needed, then every shard is matched in parallel on 'executor',
+    // and the players left near a shard's border are matched with the shards their windows reach
+    // A single shard is matched on the calling thread
+    public List<List<PlayerSession>> matchAll(long now, ExecutorService executor) {
+        if (shards.length == 1) {
+            Shard shard = shards[0];
+            shard.lock.lock();
+            try {
+                return shard.pool.matchAll(now);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        rebalance();
+
+        List<Callable<List<List<PlayerSession>>>> tasks = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            tasks.add(() -> {
+                shard.lock.lock();
+                try {
+                    return shard.pool.matchAll(now);
+                } finally {
+                    shard.lock.unlock();
+                }
+            });
+        }
+
+        List<List<PlayerSession>> matches = new ArrayList<>();
+        try {
+            for (Future<List<List<PlayerSession>>> future : executor.invokeAll(tasks)) {
+                matches.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return matches;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Matchmaking shard failed", e.getCause());
+        }
+
+        // Two players are at most 2 * maxWindow apart, so shard 'lower' only reaches the shards
+        // starting less than that above its own upper bound
+        int[] bounds = lowerBounds;
+        for (int lower = 0; lower + 1 < shards.length; lower++) {
+            for (int upper = lower + 1; upper < shards.length; upper++) {
+                if (bounds[upper - 1] - bounds[lower] > 2 * maxWindow) break;
+                matches.addAll(matchBorder(lower, upper, bounds[upper - 1], now));
+            }
+        }
+
+        return matches;
+    }
+
+    // Matches the highest ranked players left in shard 'lowerIndex' with players of shard 'upperIndex',
+    // whose lowest rank is 'border'
+    private List<List<PlayerSession>> matchBorder(int lowerIndex, int upperIndex, int border, long now) {
+        Shard lower = shards[lowerIndex];
+        Shard upper = shards[upperIndex];
+        List<List<PlayerSession>> matches = new ArrayList<>();
+
+        lower.lock.lock();
+        upper.lock.lock();
+        try {
+            for (PlayerSession client : lower.pool.clientsFrom(border - 2 * maxWindow)) {
+                PlayerSession opponent = upper.pool.findOpponent(client, now);
+                if (opponent == null) continue;
+
+                lower.pool.remove(client);
+                upper.pool.remove(opponent);
+                List<PlayerSession> playerList = new ArrayList<>(2);
+                playerList.add(client);
+                playerList.add(opponent);
+                matches.add(playerList);
+            }
+        } finally {
+            upper.lock.unlock();
+            lower.lock.unlock();
+        }
+
+        return matches;
+    }
+
+    // Moves the shard bounds to the quantiles of the waiting players' ranks, when one shard holds
+    // more than REBALANCE_FACTOR times its share of them, and moves the players to their new shards
+    // Every shard is locked meanwhile. Players keep their arrival order inside their rank
+    // Equal ranks always share a shard, so players that all have the same rank stay in one shard
+    private void rebalance() {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+        }
+        try {
+            int total = 0;
+            int largest = 0;
+            for (Shard shard : shards) {
+                total += shard.pool.size();
+                largest = Math.max(largest, shard.pool.size());
+            }
+            if (total < 2 * shards.length || largest <= REBALANCE_FACTOR * total / shards.length) return;
+
+            // The shards are in rank order and each pool lists its players by rank
+            List<PlayerSession> sorted = new ArrayList<>(total);
+            for (Shard shard : shards) {
+                sorted.addAll(shard.pool.clientsFrom(Integer.MIN_VALUE));
+            }
+
+            int[] bounds = new int[shards.length - 1];
+            for (int i = 1; i < shards.length; i++) {
+                int quantile = sorted.get((int) ((long) i * total / shards.length)).getRank();
+                bounds[i - 1] = i > 1 ? Math.max(quantile, bounds[i - 2] + 1) : quantile;
+            }
+            if (Arrays.equals(bounds, lowerBounds)) return;
+
+            for (Shard shard : shards) {
+                shard.pool.clear();
+            }
+            for (PlayerSession client : sorted) {
+                shards[shardIndex(bounds, client.getRank())].pool.add(client);
+            }
+            lowerBounds = bounds;
+            Log.debug("[MATCHMAKING] Rebalanced %d players, shard bounds %s", total, Arrays.toString(bounds));
+        } finally {
+            for (int i = shards.length - 1; i >= 0; i--) {
+                shards[i].lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Clock that only moves when told to, for simulations and reproducible runs
+// The Server reads the time from a Clock (Clock.systemUTC() by default), so it can run on this one
+public class SimulatedClock extends Clock {
+    // Shared with the copies made by withZone
+    private final AtomicLong millis;
+    private final ZoneId zone;
+
+    public SimulatedClock(long startMillis) {
+        this(new AtomicLong(startMillis), ZoneOffset.UTC);
+    }
+
+    private SimulatedClock(AtomicLong millis, ZoneId zone) {
+        this.millis = millis;
+        this.zone = zone;
+    }
+
+    // Moves the clock 'deltaMillis' forward
+    public void advance(long deltaMillis) {
+        if (deltaMillis < 0) {
+            throw new IllegalArgumentException("The clock can't go back");
+        }
+        millis.addAndGet(deltaMillis);
+    }
+
+    // Moves the clock forward to 'newMillis'
+    public void advanceTo(long newMillis) {
+        advance(newMillis - millis.get());
+    }
+
+    @Override
+    public long millis() {
+        return millis.get();
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis.get());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId newZone) {
+        return new SimulatedClock(millis, newZone);
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+// Simulation of players going through the real Server, in-process and without sockets
+// The harness starts a Server on a SimulatedClock and a temporary user database, and every player is a
+// virtual thread talking to it through an InMemoryConnection given to Server.acceptConnection: he logs
+// in, waits in the queue answering pings, plays (answering after a random delay) and requeues or leaves.
+// Some disconnect while queued and come back with their token, to the position the Server saved.
+//
+// The harness moves the clock forward, 'speed' simulated milliseconds for each real one. Queue join times,
+// matchmaking windows and the queue wait follow it, but the Server's timers (matchmaking tick, pings,
+// game countdown) run in real time, so a speed above 1 only makes the windows grow faster.
+// The seed fixes every player's rank and choices. The threads' scheduling isn't fixed, so two runs with
+// the same seed behave alike but form their games in a different order.
+// Usage: java Simulation [--players n] [--seconds s] [--speed x] [--seed s] [--mode simple|ranked]
+//                        [--requeue p] [--disconnect p] [--reconnect p]
+public class Simulation {
+    // Time (simulated milliseconds) a player takes to answer
+    private static final long ANSWER_MIN_MILLIS = 500;
+    private static final long ANSWER_MAX_MILLIS = 3000;
+    // A player who disconnects does it within this time (simulated milliseconds) of joining the queue
+    private static final int DISCONNECT_WITHIN_MILLIS = 20_000;
+    // Time (simulated milliseconds) a disconnected player stays away
+    private static final int AWAY_MIN_MILLIS = 2000;
+    private static final int AWAY_MAX_MILLIS = 10_000;
+    // Players rank distribution
+    private static final int RANK_MEAN = 1000;
+    private static final int RANK_DEVIATION = 300;
+    // Every player has this password, hashed with a low bcrypt cost so the logins don't dominate the run
+    private static final String PASSWORD = "simulation";
+    private static final int BCRYPT_COST = 4;
+    // Interval (real milliseconds) at which the clock is moved and the queue length is sampled
+    private static final long CLOCK_STEP_MILLIS = 10;
+
+    // - Options -
+    private int players = 200;
+    private long durationMillis = TimeUnit.SECONDS.toMillis(120);
+    private double speed = 1;
+    private long seed = 1;
+    private int gameMode = Server.SIMPLE;
+    // Probability of requeueing after a game
+    private double requeue = 0.7;
+    // Probability of disconnecting while queued
+    private double disconnect = 0.05;
+    // Probability of reconnecting (to the saved position) after a disconnection
+    private double reconnect = 0.8;
+
+    private SimulatedClock clock;
+    private Server server;
+    private volatile boolean running = true;
+    private final List<Player> arrived = new ArrayList<>();
+
+    // - Statistics -
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    // Reconnections refused because the Server hadn't noticed the disconnection yet (they try again)
+    private final LongAdder reconnectsTooEarly = new LongAdder();
+    private final LongAdder gamesPlayed = new LongAdder();
+    private long maxQueueSize;
+
+    // What a player does after his connection ends
+    private enum After { RECONNECT, STOP }
+
+    // One simulated player, on his own virtual thread
+    private class Player implements Runnable {
+        private final String username;
+        private final Random random;
+        private String token;
+        private volatile InMemoryConnection connection;
+        // The player is waiting in the queue (the drop timer only closes the connection then)
+        private volatile boolean inQueue;
+        private volatile boolean dropped;
+
+        Player(String username, Random random) {
+            this.username = username;
+            this.random = random;
+        }
+
+        public void run() {
+            boolean reconnecting = false;
+            while (running) {
+                InMemoryConnection[] ends = InMemoryConnection.pair();
+                connection = ends[0];
+                dropped = false;
+                server.acceptConnection(ends[1]);
+
+                After after;
+                try {
+                    after = session(ends[0], reconnecting);
+                } catch (IOException e) {
+                    after = After.STOP;
+                } finally {
+                    inQueue = false;
+                    ends[0].close();
+                }
+
+                if (after == After.STOP) break;
+                reconnecting = true;
+                pause(AWAY_MIN_MILLIS + random.nextInt(AWAY_MAX_MILLIS - AWAY_MIN_MILLIS));
+            }
+        }
+
+        // Talks with the Server until the connection ends
+        private After session(InMemoryConnection connection, boolean reconnecting) throws IOException {
+            String message;
+            while ((message = connection.read()) != null) {
+                if (message.equals(Communication.PING)) {
+                    connection.write(Communication.PONG);
+                } else if (message.equals(Communication.WELCOME)) {
+                    connection.write(reconnecting ? Communication.CLIENT_RECONNECT : Communication.CLIENT_AUTH);
+                } else if (message.equals(Communication.AUTH_USERNAME)) {
+                    connection.write(username);
+                } else if (message.equals(Communication.AUTH_PASSWORD)) {
+                    connection.write(PASSWORD);
+                } else if (message.startsWith(Communication.TOKEN)) {
+                    token = message.substring(Communication.TOKEN.length()).trim();
+                } else if (message.equals(Communication.REQUEST_TOKEN)) {
+                    connection.write(token);
+                } else if (message.equals(Communication.AUTH_SUCCESS)) {
+                    logins.increment();
+                    joinedQueue(connection);
+                } else if (message.startsWith(Communication.RECONNECT_SUCCESS)) {
+                    reconnects.increment();
+                    joinedQueue(connection);
+                } else if (message.equals(Communication.RECONNECT_ALREADY_LOGGED_IN)) {
+                    // His old connection wasn't noticed as gone yet
+                    reconnectsTooEarly.increment();
+                    return After.RECONNECT;
+                } else if (message.equals(Communication.AUTH_FAIL) || message.equals(Communication.AUTH_ALREADY_LOGGED_IN)
+                        || message.equals(Communication.RECONNECT_FAIL)) {
+                    loginFailures.increment();
+                    return After.STOP;
+                } else if (message.contains("Welcome to the Trivia!")) {
+                    inQueue = false;
+                } else if (message.equals(Communication.PROVIDE_ANSWER)) {
+                    pause(ANSWER_MIN_MILLIS + (long) (random.nextDouble() * (ANSWER_MAX_MILLIS - ANSWER_MIN_MILLIS)));
+                    connection.write(random.nextBoolean() ? "True" : "False");
+                } else if (message.equals(Communication.REQUEUE_OR_QUIT)) {
+                    gamesPlayed.increment();
+                    if (running && random.nextDouble() < requeue) {
+                        connection.write(Communication.REQUEUE);
+                        joinedQueue(connection);
+                    } else {
+                        connection.write(Communication.QUIT);
+                        return After.STOP;
+                    }
+                }
+            }
+
+            return dropped && running && random.nextDouble() < reconnect ? After.RECONNECT : After.STOP;
+        }
+
+        // Decides if the player will disconnect during this stay in the queue
+        private void joinedQueue(InMemoryConnection queuedConnection) {
+            inQueue = true;
+            if (random.nextDouble() >= disconnect) return;
+
+            long delay = random.nextInt(DISCONNECT_WITHIN_MILLIS);
+            Thread.ofVirtual().start(() -> {
+                pause(delay);
+                if (inQueue && connection == queuedConnection && running) {
+                    dropped = true;
+                    disconnects.increment();
+                    queuedConnection.close();
+                }
+            });
+        }
+    }
+
+    // Sleeps 'simulatedMillis' of simulated time
+    private void pause(long simulatedMillis) {
+        try {
+            Thread.sleep(Math.max(1, (long) (simulatedMillis / speed)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes a user database with an account for every player, ranks drawn from the seed
+    private File createUsers(Random random) throws IOException {
+        String passwordHash = new BCryptPasswordEncoder(BCRYPT_COST).encode(PASSWORD);
+        Map<String, UserDatabase.User> users = new HashMap<>();
+        for (int i = 0; i < players; i++) {
+            int rank = (int) Math.round(RANK_MEAN + random.nextGaussian() * RANK_DEVIATION);
+            users.put("player" + i, new UserDatabase.User(passwordHash, Math.max(0, rank)));
+        }
+
+        File file = File.createTempFile("simulation-users", ".json");
+        file.deleteOnExit();
+        new ObjectMapper().writeValue(file, users);
+        return file;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        Random random = new Random(seed);
+        File users = createUsers(random);
+
+        ServerConfig config = ServerConfig.singleQueue(gameMode);
+        config.setUsersFile(users.getPath());
+        config.setSnapshots(false);
+        clock = new SimulatedClock(0);
+        server = new Server(config, clock);
+
+        long wallStart = System.nanoTime();
+        Thread clockThread = Thread.ofPlatform().daemon(true).name("simulation-clock").start(() -> {
+            while (true) {
+                clock.advanceTo((long) ((System.nanoTime() - wallStart) / 1e6 * speed));
+                maxQueueSize = Math.max(maxQueueSize, Metrics.QUEUE_LENGTH.get());
+                try {
+                    Thread.sleep(CLOCK_STEP_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        // Arrivals are spread evenly over the run (exponential gaps)
+        double meanGap = (double) durationMillis / players;
+        long nextArrival = 0;
+        for (int i = 0; i < players; i++) {
+            nextArrival += (long) (-Math.log(1 - random.nextDouble()) * meanGap);
+            if (nextArrival >= durationMillis) break;
+            pause(nextArrival - clock.millis());
+
+            Player player = new Player("player" + i, new Random(random.nextLong()));
+            arrived.add(player);
+            Thread.ofVirtual().name(player.username).start(player);
+        }
+        pause(durationMillis - clock.millis());
+
+        // The players still connected are dropped when the process exits, after the report
+        running = false;
+        clockThread.interrupt();
+        clockThread.join();
+        report(System.nanoTime() - wallStart, Metrics.QUEUE_LENGTH.get());
+    }
+
+    private void report(long wallNanos, long queueAtEnd) {
+        double simulatedMinutes = clock.millis() / 60_000.0;
+
+        System.out.printf("--- Simulation (seed %d, %s mode, speed %.1f) ---%n", seed, gameMode == Server.RANKED ? "ranked" : "simple", speed);
+        System.out.printf("Simulated:          %.1f s, %d players arrived%n", clock.millis() / 1000.0, arrived.size());
+        System.out.printf("Wall time:          %.2f s%n", wallNanos / 1e9);
+        System.out.printf("Logins:             %d (%d failed)%n", logins.sum(), loginFailures.sum());
+        System.out.printf("Games:              %d started, %d finished (%.1f per simulated minute)%n",
+                Metrics.GAMES_STARTED.get(), gamesPlayed.sum() / 2, Metrics.GAMES_STARTED.get() / simulatedMinutes);
+        System.out.printf("Disconnections:     %d (%d reconnected, %d reconnections before the Server noticed)%n",
+                disconnects.sum(), reconnects.sum(), reconnectsTooEarly.sum());
+        System.out.printf("Queue size:         max %d, %d at the end%n", maxQueueSize, queueAtEnd);
+        System.out.printf("Queue wait:         %s%n", waitSummary());
+    }
+
+    // Percentiles of the Server's own queue wait histogram (trivia_queue_wait_seconds)
+    private static String waitSummary() {
+        Metrics.Histogram waits = Metrics.QUEUE_WAIT;
+        if (waits.count() == 0) return "-";
+        return String.format("p50 %.1f s / p90 %.1f s / p99 %.1f s (%d samples)",
+                waits.quantile(0.5), waits.quantile(0.9), waits.quantile(0.99), waits.count());
+    }
+
+    // Reads "--option value" pairs, returns false if any is invalid
+    private boolean parseOptions(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--players" -> players = Integer.parseInt(value);
+                case "--seconds" -> durationMillis = (long) (Double.parseDouble(value) * 1000);
+                case "--speed" -> speed = Double.parseDouble(value);
+                case "--seed" -> seed = Long.parseLong(value);
+                case "--mode" -> {
+                    if (value.equals("simple")) gameMode = Server.SIMPLE;
+                    else if (value.equals("ranked")) gameMode = Server.RANKED;
+                    else return false;
+                }
+                case "--requeue" -> requeue = Double.parseDouble(value);
+                case "--disconnect" -> disconnect = Double.parseDouble(value);
+                case "--reconnect" -> reconnect = Double.parseDouble(value);
+                default -> {
+                    return false;
+                }
+            }
+        }
+        return args.length % 2 == 0 && players > 0 && durationMillis > 0 && speed > 0;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // The Server logs every join and game, only its warnings are shown unless asked otherwise
+        if (System.getProperty("log.level") == null) {
+            System.setProperty("log.level", "WARN");
+        }
+
+        Simulation simulation = new Simulation();
+        boolean valid;
+        try {
+            valid = simulation.parseOptions(args);
+        } catch (NumberFormatException e) {
+            valid = false;
+        }
+        if (!valid) {
+            System.out.println("Usage: java Simulation [--players n] [--seconds s] [--speed x] [--seed s] [--mode simple|ranked]");
+            System.out.println("                       [--requeue p] [--disconnect p] [--reconnect p]");
+            return;
+        }
+
+        simulation.run();
+        // The Server's threads don't stop on their own
+        System.exit(0);
+    }
+}
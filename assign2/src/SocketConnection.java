@@ -0,0 +1,395 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Connection over a TCP socket
+// Every connected player keeps one of these while he waits in the queue, so it doesn't use the
+// usual BufferedReader/Writer (about 48 KB of buffers per socket). Lines are read into a small
+// byte buffer that only grows for long lines
+//
+// Messages are written straight to the socket, unless the connection has an outbound limit (the
+// players' connections, see ConnectionAcceptor). Then write() only queues the message and a writer
+// thread sends it, so a game, a notification or a ping never waits for a player whose receive window
+// is full. A player that falls behind (too many bytes waiting, or waiting for too long) is evicted:
+// his socket is closed, and the server handles him as any other disconnected player. The time limit
+// is checked on every write and by the LagWatchdog, so a player is evicted even if nothing else is
+// written to him while his writer is stuck
+public class SocketConnection implements Connection {
+    // Messages are short (commands, answers, tokens), a longer line grows the buffer up to MAX_LINE
+    private static final int INITIAL_BUFFER = 128;
+    private static final int MAX_LINE = 64 * 1024;
+    // Time (in milliseconds) closeAfterFlush() waits for the queued messages to be sent (e.g. a REDIRECT)
+    private static final int CLOSE_FLUSH_TIMEOUT = 1000;
+
+    // A queued message and when it was queued (System.nanoTime)
+    private record Pending(byte[] bytes, long queuedAt) {}
+
+    // Evicts the connections whose oldest queued message waited more than their maxLagMillis
+    // Only the connections whose writer is sending are watched, so it is one thread for every
+    // connection, started with the first one that queues a message
+    private static class LagWatchdog {
+        // Time (in milliseconds) between two checks
+        private static final int CHECK_INTERVAL = 500;
+        private static final Set<SocketConnection> sending = ConcurrentHashMap.newKeySet();
+
+        static {
+            Thread.ofPlatform().name("outbound-lag-watchdog").daemon().start(LagWatchdog::run);
+        }
+
+        static void watch(SocketConnection connection) {
+            sending.add(connection);
+        }
+
+        static void unwatch(SocketConnection connection) {
+            sending.remove(connection);
+        }
+
+        private static void run() {
+            while (true) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (SocketConnection connection : sending) {
+                    connection.evictIfLagging();
+                }
+            }
+        }
+    }
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    // Bytes read but not returned yet are buffer[start, end)
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    private int start;
+    private int end;
+    private final ReentrantLock read_lock = new ReentrantLock();
+    // Several threads may write to the same client (game, notifications, pings)
+    private final ReentrantLock write_lock = new ReentrantLock();
+
+    // - Outbound queue (0 limits: no queue) -
+    // Bytes that can be waiting and the time (in milliseconds) the oldest message can wait
+    private final int maxPendingBytes;
+    private final int maxLagMillis;
+    // Messages not written yet, the first ones may be being written. null while empty
+    private ArrayDeque<Pending> outbox;
+    private int pendingBytes;
+    // True while a writer thread is sending the outbox
+    private boolean writing;
+    private volatile boolean evicted;
+    // Signalled when the outbox is empty, only created by close
+    private Condition flushed;
+
+    // Connection whose messages are written by the caller
+    public SocketConnection(Socket socket) throws IOException {
+        this(socket, 0, 0);
+    }
+
+    // Connection whose messages are queued, the peer is evicted once more than 'maxPendingBytes'
+    // are waiting or a message waited more than 'maxLagMillis'
+    public SocketConnection(Socket socket, int maxPendingBytes, int maxLagMillis) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = socket.getOutputStream();
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public void write(String message) throws IOException {
+        writeEncoded((message + '\n').getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 'bytes' is queued as it is, the caller must not change it
+    public void writeEncoded(byte[] bytes) throws IOException {
+        write_lock.lock();
+        try {
+            if (maxPendingBytes == 0) {
+                out.write(bytes);
+                return;
+            }
+
+            if (socket.isClosed()) {
+                throw new IOException(evicted ? "Client evicted for falling behind" : "Connection closed");
+            }
+            if (outbox == null) {
+                outbox = new ArrayDeque<>();
+            } else if (isLagging(bytes.length)) {
+                evict();
+                throw new IOException("Client evicted for falling behind");
+            }
+            outbox.add(new Pending(bytes, System.nanoTime()));
+            pendingBytes += bytes.length;
+            if (!writing) {
+                writing = true;
+                LagWatchdog.watch(this);
+                Thread.startVirtualThread(this::sendPending);
+            }
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    // True if 'length' more bytes would put the peer over the limits (write_lock held)
+    private boolean isLagging(int length) {
+        return pendingBytes + length > maxPendingBytes || getOutboundLagMillis() > maxLagMillis;
+    }
+
+    // Time (in milliseconds) the oldest message not written yet has been waiting, 0 if none
+    public long getOutboundLagMillis() {
+        write_lock.lock();
+        try {
+            if (outbox == null || outbox.isEmpty()) return 0;
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - outbox.peek().queuedAt());
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    // Evicts the peer if the oldest queued message waited too long, called by the LagWatchdog
+    private void evictIfLagging() {
+        write_lock.lock();
+        try {
+            if (outbox != null && !socket.isClosed() && getOutboundLagMillis() > maxLagMillis) {
+                evict();
+            }
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    // Drops the queued messages and closes the socket, which also wakes up the writer (write_lock held)
+    private void evict() {
+        evicted = true;
+        Metrics.SLOW_CLIENTS_EVICTED.increment();
+        Log.warn("[CONNECTION] Evicted a Client that fell behind: %d bytes waiting for %d ms", pendingBytes, getOutboundLagMillis());
+        outbox = null;
+        pendingBytes = 0;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Writer thread: sends everything queued in one write, until the outbox is empty
+    // The messages stay in the outbox while they are written, so they count for the limits
+    private void sendPending() {
+        while (true) {
+            byte[] batch;
+            int count;
+            long oldest;
+            write_lock.lock();
+            try {
+                if (outbox == null || outbox.isEmpty()) {
+                    outbox = null;
+                    writing = false;
+                    LagWatchdog.unwatch(this);
+                    if (flushed != null) flushed.signalAll();
+                    return;
+                }
+                count = outbox.size();
+                batch = new byte[pendingBytes];
+                int offset = 0;
+                for (Pending pending : outbox) {
+                    System.arraycopy(pending.bytes(), 0, batch, offset, pending.bytes().length);
+                    offset += pending.bytes().length;
+                }
+                oldest = outbox.peek().queuedAt();
+            } finally {
+                write_lock.unlock();
+            }
+
+            try {
+                out.write(batch);
+            } catch (IOException e) {
+                // Closed or broken, the reads of the server will see it
+                write_lock.lock();
+                try {
+                    outbox = null;
+                    pendingBytes = 0;
+                    writing = false;
+                    LagWatchdog.unwatch(this);
+                    if (flushed != null) flushed.signalAll();
+                } finally {
+                    write_lock.unlock();
+                }
+                try {
+                    socket.close();
+                } catch (IOException closeError) {
+                    // Already closed
+                }
+                return;
+            }
+            Metrics.OUTBOUND_LAG.recordSince(oldest);
+
+            write_lock.lock();
+            try {
+                for (int i = 0; i < count && outbox != null; i++) {
+                    pendingBytes -= outbox.poll().bytes().length;
+                }
+            } finally {
+                write_lock.unlock();
+            }
+        }
+    }
+
+    // Next line without its '\n' (or "\r\n"), null if the peer closed the connection
+    public String read() throws IOException {
+        read_lock.lock();
+        try {
+            int scanned = start;
+            while (true) {
+                for (int i = scanned; i < end; i++) {
+                    if (buffer[i] == '\n') {
+                        String line = decode(start, i);
+                        start = i + 1;
+                        if (start == end) shrink();
+                        return line;
+                    }
+                }
+                scanned = end;
+
+                if (end == buffer.length) {
+                    makeRoom();
+                    scanned -= start;
+                    end -= start;
+                    start = 0;
+                }
+                int read = in.read(buffer, end, buffer.length - end);
+                if (read < 0) {
+                    // Last line without '\n'
+                    if (start == end) return null;
+                    String line = decode(start, end);
+                    start = end;
+                    shrink();
+                    return line;
+                }
+                end += read;
+            }
+        } finally {
+            read_lock.unlock();
+        }
+    }
+
+    // The bytes of a line that timed out stay in the buffer, so the next read still returns all of it
+    public String read(long timeoutMillis) throws IOException {
+        read_lock.lock();
+        try {
+            int previous = socket.getSoTimeout();
+            socket.setSoTimeout((int) Math.max(1, timeoutMillis));
+            try {
+                return read();
+            } finally {
+                if (!socket.isClosed()) socket.setSoTimeout(previous);
+            }
+        } finally {
+            read_lock.unlock();
+        }
+    }
+
+    // Every read waits at most 'timeoutMillis' until endHandshake (see ConnectionAcceptor)
+    public void startHandshake(int timeoutMillis) throws IOException {
+        read_lock.lock();
+        try {
+            socket.setSoTimeout(timeoutMillis);
+        } finally {
+            read_lock.unlock();
+        }
+    }
+
+    // Under read_lock, so it can't land inside a read(timeout) and leave that read without its timeout
+    public void endHandshake() throws IOException {
+        read_lock.lock();
+        try {
+            if (!socket.isClosed()) socket.setSoTimeout(0);
+        } finally {
+            read_lock.unlock();
+        }
+    }
+
+    // True if more input already arrived, so read() won't wait for it
+    // Lets a peer that answers several requests write all the answers at once
+    public boolean hasPendingInput() throws IOException {
+        read_lock.lock();
+        try {
+            return start < end || in.available() > 0;
+        } finally {
+            read_lock.unlock();
+        }
+    }
+
+    // Moves the pending bytes to the start of the buffer, growing it if it is full
+    private void makeRoom() throws IOException {
+        int pending = end - start;
+        byte[] target = buffer;
+        if (pending == buffer.length) {
+            if (buffer.length >= MAX_LINE) {
+                throw new IOException("Line longer than " + MAX_LINE + " bytes");
+            }
+            target = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_LINE));
+        }
+        System.arraycopy(buffer, start, target, 0, pending);
+        buffer = target;
+    }
+
+    // Gives back the memory of a long line once it is consumed
+    private void shrink() {
+        start = 0;
+        end = 0;
+        if (buffer.length > INITIAL_BUFFER) {
+            buffer = new byte[INITIAL_BUFFER];
+        }
+    }
+
+    private String decode(int from, int to) {
+        if (to > from && buffer[to - 1] == '\r') to--;
+        return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    // Closes the socket right away, which also wakes up the writer; the queued messages are dropped
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    // Waits (at most CLOSE_FLUSH_TIMEOUT) for the queued messages to be sent, then closes the socket
+    public void closeAfterFlush() throws IOException {
+        write_lock.lock();
+        try {
+            if (writing) {
+                if (flushed == null) flushed = write_lock.newCondition();
+                long remaining = TimeUnit.MILLISECONDS.toNanos(CLOSE_FLUSH_TIMEOUT);
+                while (writing && remaining > 0) {
+                    remaining = flushed.awaitNanos(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            write_lock.unlock();
+        }
+        socket.close();
+    }
+}
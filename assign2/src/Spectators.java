@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Clients watching a Game (spectators)
+// The Game publishes its events (questions, answers and scores, the end). Each event is encoded once and
+// the same bytes are queued on every spectator's connection. The fan-out runs on an EventLoop shared by
+// the Spectators of every game, so a game only posts the event and never waits for its spectators.
+// A spectator's connection buffers what he wasn't sent yet, up to the limits of its outbound queue
+// (see SocketConnection). One that falls behind is evicted there and dropped from the game here
+public class Spectators {
+    // A spectator, 'done' completes with true when the game ended and false if he was dropped
+    private record Watcher(Connection connection, CompletableFuture<Boolean> done) {}
+
+    private final EventLoop loop;
+    // Only used on the loop
+    private final List<Watcher> watchers = new ArrayList<>();
+    private boolean ended;
+    // Spectators, including the ones whose subscription is still waiting for the loop
+    // Games nobody watches skip the encoding and the loop
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Spectators(EventLoop loop) {
+        this.loop = loop;
+    }
+
+    public int count() {
+        return count.get();
+    }
+
+    // Adds a spectator, he is sent 'startMessage' (a snapshot of the game) and then every event published after it
+    // If the game already ended he is sent SPECTATE_FAIL
+    // The count is raised before the snapshot is taken, and the snapshot is taken on the loop in the same
+    // task that adds him: an event changes the game before it is published, so one the snapshot misses
+    // is published with count > 0 and queued on the loop after this task
+    public CompletableFuture<Boolean> subscribe(Connection connection, Supplier<String> startMessage) {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        count.incrementAndGet();
+        loop.execute(() -> {
+            if (ended) {
+                count.decrementAndGet();
+                try {
+                    connection.writeEncoded(encode(Communication.SPECTATE_FAIL));
+                    done.complete(true);
+                } catch (IOException e) {
+                    done.complete(false);
+                }
+                return;
+            }
+            Watcher watcher = new Watcher(connection, done);
+            watchers.add(watcher);
+            Metrics.SPECTATORS.increment();
+            try {
+                connection.writeEncoded(encode(startMessage.get()));
+            } catch (IOException e) {
+                drop(watchers.size() - 1);
+            }
+        });
+        return done;
+    }
+
+    // Sends 'message' to every spectator
+    public void publish(String message) {
+        if (count.get() == 0) return;
+        byte[] encoded = encode(message);
+        loop.execute(() -> deliver(encoded));
+    }
+
+    // Sends 'lastMessage' to every spectator and lets them go, only the first call does anything
+    public void end(String lastMessage) {
+        byte[] encoded = count.get() > 0 ? encode(lastMessage) : null;
+        loop.execute(() -> {
+            if (ended) return;
+            ended = true;
+            if (encoded != null) deliver(encoded);
+            for (Watcher watcher : watchers) {
+                watcher.done().complete(true);
+            }
+            count.addAndGet(-watchers.size());
+            Metrics.SPECTATORS.add(-watchers.size());
+            watchers.clear();
+        });
+    }
+
+    private void deliver(byte[] encoded) {
+        long start = System.nanoTime();
+        // Backwards, a dropped spectator is replaced by the last one
+        for (int i = watchers.size() - 1; i >= 0; i--) {
+            try {
+                watchers.get(i).connection().writeEncoded(encoded);
+            } catch (IOException e) {
+                drop(i);
+            }
+        }
+        Metrics.SPECTATOR_FANOUT.recordSince(start);
+    }
+
+    // Removes the spectator at 'index', his connection is closed (or about to be)
+    private void drop(int index) {
+        Watcher watcher = watchers.get(index);
+        watchers.set(index, watchers.get(watchers.size() - 1));
+        watchers.remove(watchers.size() - 1);
+        count.decrementAndGet();
+        Metrics.SPECTATORS.decrement();
+        Metrics.SPECTATORS_DROPPED.increment();
+        watcher.done().complete(false);
+    }
+
+    private static byte[] encode(String message) {
+        return (message + '\n').getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,3 +1,4 @@
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
@@ -5,35 +6,35 @@ import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.UUID;
 
 public class UserDatabase {
     private static final String FILE_PATH = "src/database/users.json";
+    private final String filePath;
     private Map<String, User> users;
-    private final HashSet<String> loggedInUsers = new HashSet<>();
     private final ObjectMapper objectMapper;
     private final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
-    private final BCryptPasswordEncoder tokenEncoder = new BCryptPasswordEncoder();
+    // Rank index of every user, has its own lock
+    private final Leaderboard leaderboard = new Leaderboard();
 
     public UserDatabase() throws IOException {
+        this(FILE_PATH);
+    }
+
+    // Uses the database file at 'filePath' instead of the default one (e.g. a copy for benchmarks)
+    public UserDatabase(String filePath) throws IOException {
+        this.filePath = filePath;
         this.objectMapper = new ObjectMapper();
         loadUsers();
     }
 
-    // Adds user to loggedInUsers
-    void userLoggedIn(String username) { loggedInUsers.add(username); }
-
-    // Removes user from loggedInUsers
-    void userLoggedOut(String username) { loggedInUsers.remove(username); }
-
-    // Checks if user is logged in
-    boolean isUserLoggedIn(String username) { return loggedInUsers.contains(username); }
+    public Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
 
     // Loads users from database file
     private void loadUsers() throws IOException {
-        File file = new File(FILE_PATH);
+        File file = new File(filePath);
         if (file.exists()) {
             if (file.length() == 0) {
                 users = new HashMap<>();
@@ -41,6 +42,7 @@ public class UserDatabase {
             }
             users = objectMapper.readValue(file, new TypeReference<>() {
             });
+            users.forEach((username, user) -> leaderboard.updateRank(username, user.getRank()));
         } else {
             throw new IOException("User database file not found.");
         }
@@ -48,7 +50,13 @@ public class UserDatabase {
 
     // Saves users to database file
     private void saveUsers() throws IOException {
-        objectMapper.writeValue(new File(FILE_PATH), users);
+        ServerEvents.UsersSaved event = new ServerEvents.UsersSaved();
+        event.begin();
+        long start = System.nanoTime();
+        objectMapper.writeValue(new File(filePath), users);
+        Metrics.SAVE_USERS.recordSince(start);
+        event.userCount = users.size();
+        event.commit();
     }
 
     // Verifies if user with username:password exists in the database file
@@ -63,47 +71,33 @@ public class UserDatabase {
         if (user != null) {
             int currRank = user.getRank();
             user.setRank(currRank + addedRank);
+            leaderboard.updateRank(username, user.getRank());
             saveUsers();
         }
     }
 
-    // Gets rank from user with 'username'
-    public int getUserRank(String username) {
-        User user = users.get(username);
-        return user != null ? user.getRank() : -1; // Return -1 if user is not found
-    }
-
-    // Generates a unique session token
-    public String generateSessionToken() {
-        return UUID.randomUUID().toString();
-    }
+    // Increments the rank of several users, saving the database only once
+    // {username : addedRank}
+    public void incrementRanks(Map<String, Integer> addedRanks) throws IOException {
+        boolean changed = false;
+        for (Map.Entry<String, Integer> entry : addedRanks.entrySet()) {
+            User user = users.get(entry.getKey());
+            if (user != null) {
+                user.setRank(user.getRank() + entry.getValue());
+                leaderboard.updateRank(entry.getKey(), user.getRank());
+                changed = true;
+            }
+        }
 
-    // Assigns session token
-    // Returns not encoded session token
-    // Or null if user doesn't exist
-    public String assignSessionToken(String username) throws IOException {
-        User user = users.get(username);
-        if (user != null) {
-            String token = generateSessionToken();
-            String encodedToken = tokenEncoder.encode(token);
-            user.setSessionToken(encodedToken);
+        if (changed) {
             saveUsers();
-            return token;
         }
-
-        return null;
     }
 
-    // Gets username form a sessionToken
-    // returns null if no user found with that sessionToken
-    public String getUsernameFromToken(String sessionToken) {
-        for (Map.Entry<String, User> entry : users.entrySet()) {
-            String retrievedToken = entry.getValue().getSessionToken();
-            if (retrievedToken != null && tokenEncoder.matches(sessionToken, retrievedToken)) {
-                return entry.getKey();
-            }
-        }
-        return null;
+    // Gets rank from user with 'username'
+    public int getUserRank(String username) {
+        User user = users.get(username);
+        return user != null ? user.getRank() : -1; // Return -1 if user is not found
     }
 
     // Creates a new user and adds it to the database
@@ -113,16 +107,18 @@ public class UserDatabase {
             String encodedPassword = passwordEncoder.encode(password);
             User newUser = new User(encodedPassword, 100);
             users.put(username, newUser);
+            leaderboard.updateRank(username, newUser.getRank());
             saveUsers();
         } else {
             throw new IllegalArgumentException("Username already exists.");
         }
     }
 
+    // Session tokens used to be saved here, files that still have them load fine (see SessionStore)
+    @JsonIgnoreProperties(ignoreUnknown = true)
     public static class User {
         private String password;
         private int rank;
-        private String sessionToken;
 
         public User() {
         }
@@ -144,14 +140,6 @@ public class UserDatabase {
             this.rank = rank;
         }
 
-        public String getSessionToken() {
-            return sessionToken;
-        }
-    
-        public void setSessionToken(String sessionToken) {
-            this.sessionToken = sessionToken;
-        }
-
     }
 
     // Main method only for testing purposes
@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Command line options win over the --config file, wherever --config is given
+public class ServerConfigTest {
+    @TempDir
+    Path dir;
+
+    private String configFile(String contents) throws IOException {
+        Path file = dir.resolve("server.properties");
+        Files.writeString(file, contents);
+        return file.toString();
+    }
+
+    @Test
+    public void optionBeforeConfigWins() throws IOException {
+        String file = configFile("acceptors=1\n");
+        ServerConfig config = ServerConfig.fromArgs(new String[] {"12345", "--acceptors", "4", "--config", file});
+        assertEquals(4, config.getAcceptors());
+    }
+
+    @Test
+    public void optionAfterConfigWins() throws IOException {
+        String file = configFile("acceptors=1\n");
+        ServerConfig config = ServerConfig.fromArgs(new String[] {"12345", "--config", file, "--acceptors", "4"});
+        assertEquals(4, config.getAcceptors());
+    }
+
+    @Test
+    public void fileAppliesWithoutOption() throws IOException {
+        String file = configFile("port=7000\nacceptors=3\nmax.pre.auth=50\n");
+        ServerConfig config = ServerConfig.fromArgs(new String[] {"--max-pre-auth", "20", "--config", file});
+        assertEquals(7000, config.getPort());
+        assertEquals(3, config.getAcceptors());
+        assertEquals(20, config.getMaxPreAuth());
+    }
+}